@@ -0,0 +1,120 @@
+package com.robertsebastian.timelogger;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+public class IntervalIndexTest extends TestCase {
+    private static final String TAG = IntervalIndexTest.class.getSimpleName();
+
+    private static final int AUDIT_RANGES = 200000;
+
+    // (id, start, end) of each range
+    private static ArrayList<long[]> randomRanges(Random random, int count) {
+        ArrayList<long[]> ranges = new ArrayList<long[]>();
+        for(int i = 0; i < count; i++) {
+            long start = random.nextInt(100000);
+            long end = random.nextInt(20) == 0 ? Long.MAX_VALUE : start + random.nextInt(2000);
+            ranges.add(new long[] {i + 1, start, end});
+        }
+        return ranges;
+    }
+
+    // The ranges in the index's (start, id) order, as one array of triples
+    private static long[] sorted(ArrayList<long[]> ranges) {
+        ArrayList<long[]> copy = new ArrayList<long[]>(ranges);
+        Collections.sort(copy, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] x, long[] y) {
+                if(x[1] != y[1]) return x[1] < y[1] ? -1 : 1;
+                return x[0] < y[0] ? -1 : (x[0] == y[0] ? 0 : 1);
+            }
+        });
+
+        long[] triples = new long[3 * copy.size()];
+        for(int i = 0; i < copy.size(); i++) System.arraycopy(copy.get(i), 0, triples, 3 * i, 3);
+        return triples;
+    }
+
+    public void testFindOverlapsMatchesBruteForce() {
+        Random random = new Random(1);
+        ArrayList<long[]> ranges = randomRanges(random, 2000);
+
+        IntervalIndex index = new IntervalIndex();
+        for(long[] r : ranges) index.add(r[0], r[1], r[2]);
+
+        // Take every tenth one out again
+        for(int i = ranges.size() - 1; i >= 0; i -= 10) {
+            long[] r = ranges.remove(i);
+            assertTrue(index.remove(r[0], r[1]));
+        }
+        assertFalse(index.remove(-1, 0));
+        assertEquals(ranges.size(), index.size());
+
+        for(int i = 0; i < 500; i++) {
+            long a = random.nextInt(110000) - 5000;
+            long b = a + random.nextInt(5000);
+
+            ArrayList<long[]> expected = new ArrayList<long[]>();
+            for(long[] r : ranges) {
+                if(r[1] < b && r[2] > a) expected.add(r);
+            }
+            assertTrue(Arrays.equals(sorted(expected), index.findOverlaps(a, b)));
+        }
+    }
+
+    public void testFindAllOverlapsMatchesBruteForce() {
+        ArrayList<long[]> ranges = randomRanges(new Random(2), 1000);
+        ranges.add(new long[] {5000, 300, 300});  // Empty ranges never overlap
+
+        IntervalIndex index = new IntervalIndex();
+        for(long[] r : ranges) index.add(r[0], r[1], r[2]);
+
+        long[] v = sorted(ranges);
+        ArrayList<Long> expected = new ArrayList<Long>();
+        for(int i = 0; i < ranges.size(); i++) {
+            for(int j = i + 1; j < ranges.size(); j++) {
+                boolean empty = v[3 * i + 2] <= v[3 * i + 1] || v[3 * j + 2] <= v[3 * j + 1];
+                if(!empty && v[3 * j + 1] < v[3 * i + 2] && v[3 * i + 1] < v[3 * j + 2]) {
+                    expected.add(v[3 * i]);
+                    expected.add(v[3 * j]);
+                }
+            }
+        }
+
+        long[] pairs = index.findAllOverlaps(Integer.MAX_VALUE);
+        assertEquals(expected.size(), pairs.length);
+        for(int i = 0; i < pairs.length; i++) assertEquals((long)expected.get(i), pairs[i]);
+
+        assertEquals(20, index.findAllOverlaps(10).length);
+    }
+
+    // Back to back ranges, one in a thousand running into the next, like a long history with a few mistakes. Logs
+    // how long building and auditing took rather than asserting on timings, which depend on the device.
+    public void testAuditOfLongHistory() {
+        long started = SystemClock.uptimeMillis();
+
+        IntervalIndex index = new IntervalIndex();
+        long start = 1400000000000L;
+        for(int i = 0; i < AUDIT_RANGES; i++) {
+            long end = start + 3600000;
+            index.add(i + 1, start, i % 1000 == 0 ? end + 60000 : end);
+            start = end;
+        }
+        long built = SystemClock.uptimeMillis();
+
+        long[] pairs = index.findAllOverlaps(1000);
+        long audited = SystemClock.uptimeMillis();
+
+        Log.i(TAG, AUDIT_RANGES + " ranges built in " + (built - started) + "ms, audited in " + (audited - built) +
+                "ms");
+        assertEquals(2 * AUDIT_RANGES / 1000, pairs.length);
+    }
+}
@@ -0,0 +1,87 @@
+package com.robertsebastian.timelogger;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+// Every query shape the app sends reads times and task_days through an index, see TimeProvider.findFullScan()
+public class QueryPlanTest extends AndroidTestCase {
+    // Task list filters and sort orders, see TaskListFragment
+    private static final String[] TASK_SELECTIONS = {"hidden = 0", "1"};
+    private static final String[] TASK_SORT_ORDERS = {
+            "hidden asc, name collate nocase asc",
+            "hidden asc, last_used desc",
+            "hidden asc, time_added desc",
+    };
+
+    private SQLiteDatabase mDb;
+    private TimeProvider mProvider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = new TimeProvider.DbHelper(getContext(), null).getWritableDatabase();
+        mProvider = new TimeProvider();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private void assertIndexed(String sql) {
+        assertNull(sql, TimeProvider.findFullScan(mDb, sql, null));
+    }
+
+    private void assertIndexed(int uriType, String[] projection, String selection, String sortOrder, boolean id,
+                               boolean search, boolean before, boolean after, String limit) {
+        assertIndexed(mProvider.getQueryTemplate(mDb, uriType, projection, selection, sortOrder, id, search, before,
+                after, limit));
+    }
+
+    public void testTaskList() {
+        for(String selection : TASK_SELECTIONS) {
+            for(String sortOrder : TASK_SORT_ORDERS) {
+                assertIndexed(TimeProvider.TASK_LIST, TaskListLoader.PROJECTION, selection, sortOrder, false, false,
+                        false, false, null);
+                assertIndexed(TimeProvider.TASK_SEARCH, TaskListLoader.PROJECTION, selection, sortOrder, false, true,
+                        false, false, null);
+            }
+
+            assertIndexed(TimeProvider.TASK_LIST, TimeProvider.TOTALS_PROJECTION, selection, null, false, false,
+                    false, false, null);
+            assertIndexed(TimeProvider.TASK_SEARCH, TimeProvider.TOTALS_PROJECTION, selection, null, false, true,
+                    false, false, null);
+        }
+    }
+
+    public void testTasks() {
+        assertIndexed(TimeProvider.TASK_LIST, TaskCatalog.PROJECTION, null, "_id", false, false, false, false, null);
+        assertIndexed(TimeProvider.TASK_ID, new String[] {"name", "description", "hidden"}, null, null, true, false,
+                false, false, null);
+    }
+
+    // The first page, pages between two bounds and the last page, see TimeListFragment
+    public void testTimePages() {
+        assertIndexed(TimeProvider.TIME_LIST, TimeRowsLoader.PROJECTION, null, "start desc", false, false, false,
+                false, "50");
+        assertIndexed(TimeProvider.TIME_LIST, TimeRowsLoader.PROJECTION, null, "start desc", false, false, true,
+                false, "50");
+        assertIndexed(TimeProvider.TIME_LIST, TimeRowsLoader.PROJECTION, null, "start desc", false, false, false,
+                true, null);
+        assertIndexed(TimeProvider.TIME_LIST, TimeRowsLoader.PROJECTION, null, "start desc", false, false, true,
+                true, null);
+    }
+
+    public void testTimes() {
+        assertIndexed(TimeProvider.TIME_LIST, Timeline.PROJECTION, "start >= ? AND start < ?", "start, _id", false,
+                false, false, false, null);
+        assertIndexed(TimeProvider.TIME_ID, new String[] {"start", "stop", "task_id"}, null, null, true, false,
+                false, false, null);
+    }
+
+    public void testExport() {
+        assertIndexed(String.format(TimeExporter.CHUNK_QUERY, ""));
+        assertIndexed(String.format(TimeExporter.CHUNK_QUERY, "AND times.task_id = ? "));
+    }
+}
@@ -0,0 +1,160 @@
+package com.robertsebastian.timelogger;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Random;
+
+// Two clients, each with its own in-memory database, syncing through one LoopbackSyncServer
+@LargeTest
+public class SyncEngineTest extends AndroidTestCase {
+    private static final String TAG = SyncEngineTest.class.getSimpleName();
+
+    private static final int RANGES = 100000;
+
+    // The wire form packs a range into about 5.6 bytes each way
+    private static final int MAX_BYTES_PER_RANGE = 8;
+
+    private SQLiteDatabase mDbA;
+    private SQLiteDatabase mDbB;
+    private LoopbackSyncServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbA = new TimeProvider.DbHelper(getContext(), null).getWritableDatabase();
+        mDbB = new TimeProvider.DbHelper(getContext(), null).getWritableDatabase();
+        mServer = new LoopbackSyncServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbA.close();
+        mDbB.close();
+        super.tearDown();
+    }
+
+    private SyncEngine sync(SQLiteDatabase db) throws Exception {
+        SyncEngine engine = new SyncEngine(db, mServer);
+        engine.sync();
+        Log.i(TAG, "Pushed " + engine.getPushed() + ", pulled " + engine.getPulled() + ", sent "
+                + engine.getBytesSent() + " bytes, received " + engine.getBytesReceived() + " bytes");
+        return engine;
+    }
+
+    // Back to back ranges of the seeded tasks, with starts and lengths to the millisecond like recorded ones
+    private void insertRanges(SQLiteDatabase db, int count) {
+        Random random = new Random(1);
+        long start = 1400000000000L;
+
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement("INSERT INTO times (task_id, start, stop) VALUES (?, ?, ?)");
+            for(int i = 0; i < count; i++) {
+                long stop = start + 60000 + random.nextInt(3600000);
+                insert.bindLong(1, 1 + random.nextInt(3));
+                insert.bindLong(2, start);
+                insert.bindLong(3, stop);
+                insert.executeInsert();
+                start = stop + random.nextInt(7200000);
+            }
+            insert.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static long getStop(SQLiteDatabase db, String gid) {
+        return DatabaseUtils.longForQuery(db, "SELECT stop FROM times WHERE gid = ?", new String[] {gid});
+    }
+
+    // The same two updates as TimeProvider.switchTask(), so the selection triggers open and close the ranges
+    private static void switchTask(SQLiteDatabase db, long taskId) {
+        db.execSQL("UPDATE tasks SET selected = 0 WHERE selected = 1");
+        db.execSQL("UPDATE tasks SET selected = 1 WHERE _id = ?", new Object[] {taskId});
+    }
+
+    private static long countRanges(SQLiteDatabase db, String gid) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM times WHERE gid = ?", new String[] {gid});
+    }
+
+    public void testClientsConverge() throws Exception {
+        insertRanges(mDbA, RANGES);
+
+        SyncEngine a = sync(mDbA);
+        assertEquals(mServer.digest(), new SyncEngine(mDbA, mServer).digest());
+        assertTrue("Sent " + a.getBytesSent(), a.getBytesSent() < RANGES * MAX_BYTES_PER_RANGE);
+
+        SyncEngine b = sync(mDbB);
+        assertEquals(mServer.digest(), new SyncEngine(mDbB, mServer).digest());
+        assertTrue("Received " + b.getBytesReceived(), b.getBytesReceived() < RANGES * MAX_BYTES_PER_RANGE);
+
+        // Both edit and delete ranges, B drops one of A's tasks and leaves its ranges behind, and both change the
+        // same range
+        String conflict = DatabaseUtils.stringForQuery(mDbA, "SELECT gid FROM times WHERE _id = 500", null);
+        mDbA.execSQL("UPDATE times SET stop = stop + 60000 WHERE _id % 100 = 1");
+        mDbA.execSQL("DELETE FROM times WHERE _id % 100 = 2");
+        mDbA.execSQL("INSERT INTO tasks (name, description) VALUES ('From A', '')");
+        mDbA.execSQL("INSERT INTO times (task_id, start, stop) "
+                + "SELECT max(_id), 1300000000000, 1300000600000 FROM tasks");
+        mDbA.execSQL("UPDATE times SET stop = stop + 1000 WHERE gid = ?", new Object[] {conflict});
+
+        mDbB.execSQL("UPDATE times SET start = start - 60000 WHERE _id % 150 = 7");
+        mDbB.execSQL("DELETE FROM times WHERE _id % 150 = 8");
+        mDbB.execSQL("DELETE FROM tasks WHERE _id = (SELECT task_id FROM times WHERE gid = ?)",
+                new Object[] {conflict});
+        mDbB.execSQL("UPDATE times SET stop = stop + 2000 WHERE gid = ?", new Object[] {conflict});
+        long stopB = getStop(mDbB, conflict);
+
+        // A's changes reach B except the range B changed too, B's reach the server and then A
+        sync(mDbA);
+        sync(mDbB);
+        sync(mDbA);
+
+        String digest = mServer.digest();
+        assertEquals(digest, new SyncEngine(mDbA, mServer).digest());
+        assertEquals(digest, new SyncEngine(mDbB, mServer).digest());
+
+        // The later push wins
+        assertEquals(stopB, getStop(mDbA, conflict));
+        assertEquals(stopB, getStop(mDbB, conflict));
+    }
+
+    // A range running on A mustn't reach B, where switching tasks would close or drop it on B's clock
+    public void testRunningRangeStaysLocal() throws Exception {
+        switchTask(mDbA, 1);
+        String running = DatabaseUtils.stringForQuery(mDbA, "SELECT gid FROM times WHERE stop = -1", null);
+
+        sync(mDbA);
+        sync(mDbB);
+        assertEquals(0, countRanges(mDbB, running));
+
+        switchTask(mDbB, 1);
+        switchTask(mDbB, 2);
+        sync(mDbB);
+        sync(mDbA);
+
+        assertEquals(-1, getStop(mDbA, running));
+        assertEquals(1, DatabaseUtils.longForQuery(mDbA, "SELECT selected FROM tasks WHERE _id = 1", null));
+        assertEquals(mServer.digest(), new SyncEngine(mDbA, mServer).digest());
+
+        // Closed, long enough to be kept, it goes out like any other change
+        mDbA.execSQL("UPDATE times SET start = start - 7200000 WHERE gid = ?", new Object[] {running});
+        switchTask(mDbA, 2);
+        long stop = getStop(mDbA, running);
+        assertTrue(stop != -1);
+
+        sync(mDbA);
+        sync(mDbB);
+        assertEquals(stop, getStop(mDbB, running));
+
+        String digest = mServer.digest();
+        assertEquals(digest, new SyncEngine(mDbA, mServer).digest());
+        assertEquals(digest, new SyncEngine(mDbB, mServer).digest());
+    }
+}
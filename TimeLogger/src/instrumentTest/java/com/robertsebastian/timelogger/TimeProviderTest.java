@@ -0,0 +1,167 @@
+package com.robertsebastian.timelogger;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+// Runs against a fresh copy of the database, seeded as on first start
+public class TimeProviderTest extends ProviderTestCase2<TimeProvider> {
+    private static final long ONE_MINUTE = 60 * 1000;
+    private static final long ONE_HOUR = 60 * ONE_MINUTE;
+
+    private static final long PROJECT_3 = 3;
+
+    public TimeProviderTest() {
+        super(TimeProvider.class, TimeProvider.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        // The test context keeps its database between runs
+        getContext().deleteDatabase("test.time_db");
+        super.setUp();
+    }
+
+    private long insertRange(long taskId, long start, long stop) {
+        ContentValues values = new ContentValues();
+        values.put("task_id", taskId);
+        values.put("start", start);
+        values.put("stop", stop);
+        return ContentUris.parseId(getMockContentResolver().insert(TimeProvider.TIMES_URI, values));
+    }
+
+    private long insertTask(String name) {
+        ContentValues values = new ContentValues();
+        values.put("name", name);
+        values.put("description", "");
+        return ContentUris.parseId(getMockContentResolver().insert(TimeProvider.TASKS_URI, values));
+    }
+
+    // Local midnight starting the given day
+    private static long day(int year, int month, int day) {
+        return new GregorianCalendar(year, month, day).getTimeInMillis();
+    }
+
+    // Local midnight starting the day the given number of days from today
+    private static long today(int offset) {
+        Calendar cal = Calendar.getInstance();
+        return day(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH), cal.get(Calendar.DAY_OF_MONTH) + offset);
+    }
+
+    // A task's time over the local days [start, stop)
+    private long getDuration(long taskId, long start, long stop) {
+        Uri uri = ContentUris.withAppendedId(TimeProvider.TASKS_URI, taskId).buildUpon()
+                .appendQueryParameter("start", Long.toString(start))
+                .appendQueryParameter("stop", Long.toString(stop))
+                .build();
+        Cursor c = getMockContentResolver().query(uri, new String[] {"_id", "duration"}, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(1);
+        } finally {
+            c.close();
+        }
+    }
+
+    private boolean rangeExists(long id) {
+        Cursor c = getMockContentResolver().query(ContentUris.withAppendedId(TimeProvider.TIMES_URI, id),
+                new String[] {"_id"}, null, null, null);
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    private int countRanges() {
+        Cursor c = getMockContentResolver().query(TimeProvider.TIMES_URI, new String[] {"_id"}, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testCompactionKeepsRangesAtTheMinimumLength() {
+        Bundle extras = new Bundle();
+        extras.putLong("value", ONE_MINUTE);
+        getProvider().call(TimeProvider.METHOD_SET_SETTING, TimeProvider.SETTING_MIN_RANGE_LENGTH, extras);
+
+        long start = 1388000000000L;
+        long shorter = insertRange(PROJECT_3, start, start + ONE_MINUTE - 1);
+        long minimum = insertRange(PROJECT_3, start, start + ONE_MINUTE);
+        long longer = insertRange(PROJECT_3, start, start + ONE_HOUR);
+        long running = insertRange(PROJECT_3, Util.getTimeMs(), -1);
+        int before = countRanges();
+
+        getProvider().compactShortRanges();
+
+        assertFalse(rangeExists(shorter));
+        assertTrue(rangeExists(minimum));
+        assertTrue(rangeExists(longer));
+        assertTrue(rangeExists(running));
+        assertEquals("Only the short range goes, the seeded ones stay", before - 1, countRanges());
+    }
+
+    // The seeded range from noon on the 23rd to noon on the 26th counts on each day it covers
+    public void testDurationOfRangeOverSeveralDays() {
+        long dec23 = day(2013, Calendar.DECEMBER, 23);
+        long dec24 = day(2013, Calendar.DECEMBER, 24);
+        long dec25 = day(2013, Calendar.DECEMBER, 25);
+        long dec26 = day(2013, Calendar.DECEMBER, 26);
+        long dec27 = day(2013, Calendar.DECEMBER, 27);
+
+        assertEquals(12 * ONE_HOUR, getDuration(PROJECT_3, dec23, dec24));
+        assertEquals(24 * ONE_HOUR, getDuration(PROJECT_3, dec24, dec25));
+        assertEquals(12 * ONE_HOUR, getDuration(PROJECT_3, dec26, dec27));
+        assertEquals(24 * ONE_HOUR, getDuration(PROJECT_3, dec25, dec26));
+        assertEquals(72 * ONE_HOUR, getDuration(PROJECT_3, dec23, dec27));
+    }
+
+    public void testDurationOfRangeOverMidnight() {
+        long task = insertTask("Late");
+        long jan5 = day(2014, Calendar.JANUARY, 5);
+        long jan6 = day(2014, Calendar.JANUARY, 6);
+        long jan7 = day(2014, Calendar.JANUARY, 7);
+        insertRange(task, jan5 + 22 * ONE_HOUR, jan6 + 2 * ONE_HOUR);
+
+        assertEquals(2 * ONE_HOUR, getDuration(task, jan5, jan6));
+        assertEquals(2 * ONE_HOUR, getDuration(task, jan6, jan7));
+        assertEquals(4 * ONE_HOUR, getDuration(task, jan5, jan7));
+    }
+
+    // Only the part after the window starts counts for a range reaching in from before it
+    public void testDurationOfRangeFromBeforeWindow() {
+        long task = insertTask("Early");
+        long jan5 = day(2014, Calendar.JANUARY, 5);
+        long jan6 = day(2014, Calendar.JANUARY, 6);
+        long jan8 = day(2014, Calendar.JANUARY, 8);
+        long jan9 = day(2014, Calendar.JANUARY, 9);
+        insertRange(task, jan5 + 10 * ONE_HOUR, jan8 + ONE_HOUR);
+
+        assertEquals(ONE_HOUR, getDuration(task, jan8, jan9));
+        assertEquals(49 * ONE_HOUR, getDuration(task, jan6, jan9));
+    }
+
+    // A running range counts up to the end of a window it has passed, and up to now in the window holding now
+    public void testDurationOfOpenRange() {
+        long task = insertTask("Running");
+        long yesterday = today(-1);
+        long today = today(0);
+        insertRange(task, yesterday + 20 * ONE_HOUR, -1);
+
+        assertEquals(4 * ONE_HOUR, getDuration(task, yesterday, today));
+
+        long before = Util.getTimeMs();
+        long duration = getDuration(task, today, today(1));
+        long after = Util.getTimeMs();
+        assertTrue(duration >= before - today);
+        assertTrue(duration <= after - today);
+    }
+}
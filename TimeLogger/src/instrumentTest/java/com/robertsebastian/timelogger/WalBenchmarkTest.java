@@ -0,0 +1,133 @@
+package com.robertsebastian.timelogger;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+// List reload latency while the provider writes, with the rollback journal and with write-ahead logging. Logs
+// the two histograms to compare rather than asserting on timings, which depend on the device.
+@LargeTest
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class WalBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = WalBenchmarkTest.class.getSimpleName();
+
+    private static final String DB_NAME = "wal_benchmark.db";
+    private static final int RANGES = 20000;
+    private static final int RELOADS = 200;
+
+    // What the task list and the first time list page read on a reload
+    private static final String[] RELOAD_QUERIES = {
+            "SELECT task_id, total(duration) FROM task_days GROUP BY task_id",
+            "SELECT _id, task_id, start, stop FROM times ORDER BY start DESC LIMIT 50",
+    };
+
+    // Inserts a range per transaction, like edits through the provider, until stopped
+    static private class Writer extends Thread {
+        private final SQLiteDatabase mDb;
+        private volatile boolean mStopped = false;
+        private volatile Throwable mError = null;
+        private int mWrites = 0;
+
+        Writer(SQLiteDatabase db) {
+            mDb = db;
+        }
+
+        @Override
+        public void run() {
+            try {
+                SQLiteStatement insert = mDb.compileStatement(
+                        "INSERT INTO times (task_id, start, stop) VALUES (1, ?, ?)");
+                long start = 1500000000000L;
+                while(!mStopped) {
+                    insert.bindLong(1, start);
+                    insert.bindLong(2, start + 3600000);
+                    insert.executeInsert();
+                    start += 7200000;
+                    mWrites++;
+                }
+                insert.close();
+            } catch(Throwable e) {
+                mError = e;
+            }
+        }
+
+        int finish() throws Exception {
+            mStopped = true;
+            join();
+            if(mError != null) throw new Exception(mError);
+            return mWrites;
+        }
+    }
+
+    private SQLiteDatabase open(boolean wal) {
+        getContext().deleteDatabase(DB_NAME);
+        TimeProvider.DbHelper helper = new TimeProvider.DbHelper(getContext(), DB_NAME);
+        helper.setWriteAheadLoggingEnabled(wal);
+        return helper.getWritableDatabase();
+    }
+
+    private static void insertRanges(SQLiteDatabase db, int count) {
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement("INSERT INTO times (task_id, start, stop) VALUES (?, ?, ?)");
+            long start = 1400000000000L;
+            for(int i = 0; i < count; i++) {
+                insert.bindLong(1, 1 + i % 3);
+                insert.bindLong(2, start);
+                insert.bindLong(3, start + 1800000);
+                insert.executeInsert();
+                start += 3600000;
+            }
+            insert.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private LatencyHistogram measure(boolean wal) throws Exception {
+        SQLiteDatabase db = open(wal);
+        try {
+            insertRanges(db, RANGES);
+
+            LatencyHistogram latency = new LatencyHistogram(wal ? "Reload with WAL" : "Reload with rollback journal");
+            Writer writer = new Writer(db);
+            writer.start();
+            int writes;
+            try {
+                for(int i = 0; i < RELOADS; i++) {
+                    long started = SystemClock.uptimeMillis();
+                    for(String sql : RELOAD_QUERIES) {
+                        Cursor c = db.rawQuery(sql, null);
+                        c.getCount();
+                        c.close();
+                    }
+                    latency.record(SystemClock.uptimeMillis() - started);
+                }
+            } finally {
+                writes = writer.finish();
+            }
+
+            Log.i(TAG, latency + ", " + writes + " writes meanwhile");
+            return latency;
+        } finally {
+            db.close();
+            getContext().deleteDatabase(DB_NAME);
+        }
+    }
+
+    public void testReloadLatencyWhileWriting() throws Exception {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return;
+
+        LatencyHistogram rollback = measure(false);
+        LatencyHistogram wal = measure(true);
+        assertEquals(RELOADS, rollback.getCount());
+        assertEquals(RELOADS, wal.getCount());
+    }
+}
@@ -0,0 +1,279 @@
+package com.robertsebastian.timelogger;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+// Imports closed time ranges from CSV with a header row naming at least "task", "start" and "stop" columns, such as
+// the provider's own export. Times are epoch milliseconds or local "yyyy-MM-dd HH:mm[:ss]" dates. Tasks are
+// matched by name and created if missing. Rows are parsed as they stream in and written through compiled
+// statements in chunked transactions, yielding to other database users in between. Rows that can't be read,
+// and ranges still running, are skipped.
+public class CsvImporter {
+    public interface ProgressListener {
+        public void onProgress(long imported, long skipped, long rowsPerSecond);
+    }
+
+    // Let waiting readers/writers in every YIELD_ROWS rows, and commit every CHUNK_ROWS
+    private static final int YIELD_ROWS = 250;
+    private static final int CHUNK_ROWS = 5000;
+
+    private static final String[] DATE_FORMATS = {
+            "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm"};
+
+    private final SQLiteDatabase mDb;
+    private final HashMap<String, Long> mTaskIds = new HashMap<String, Long>();
+    private final SimpleDateFormat[] mDateFormats = new SimpleDateFormat[DATE_FORMATS.length];
+
+    private SQLiteStatement mInsertTime;
+    private SQLiteStatement mInsertTask;
+
+    // Column positions from the header
+    private int mTaskCol = -1, mStartCol = -1, mStopCol = -1, mDescriptionCol = -1;
+
+    private long mImported = 0;
+    private long mSkipped = 0;
+    private long mTasksCreated = 0;
+
+    public CsvImporter(SQLiteDatabase db) {
+        mDb = db;
+
+        for(int i = 0; i < DATE_FORMATS.length; i++) {
+            mDateFormats[i] = new SimpleDateFormat(DATE_FORMATS[i], Locale.US);
+            mDateFormats[i].setLenient(false);
+        }
+    }
+
+    public long getImported() {
+        return mImported;
+    }
+
+    public long getSkipped() {
+        return mSkipped;
+    }
+
+    public long getTasksCreated() {
+        return mTasksCreated;
+    }
+
+    // Import everything from the reader. Chunks already committed stay imported if this fails part way.
+    public void run(Reader in, ProgressListener listener) throws IOException {
+        CsvReader csv = new CsvReader(in);
+        ArrayList<String> fields = new ArrayList<String>();
+
+        if(!csv.readRecord(fields)) return;
+        readHeader(fields);
+        loadTasks();
+
+        mInsertTime = mDb.compileStatement("INSERT INTO times (task_id, start, stop) VALUES (?, ?, ?)");
+        mInsertTask = mDb.compileStatement("INSERT INTO tasks (name, description) VALUES (?, ?)");
+
+        long startTime = Util.getTimeMs();
+        mDb.beginTransaction();
+        try {
+            while(csv.readRecord(fields)) {
+                if(insertRow(fields)) {
+                    mImported++;
+                } else {
+                    mSkipped++;
+                }
+
+                long rows = mImported + mSkipped;
+                if(rows % CHUNK_ROWS == 0) {
+                    mDb.setTransactionSuccessful();
+                    mDb.endTransaction();
+                    mDb.beginTransaction();
+
+                    if(listener != null) listener.onProgress(mImported, mSkipped, getRate(rows, startTime));
+                } else if(rows % YIELD_ROWS == 0) {
+                    mDb.yieldIfContendedSafely();
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            mInsertTime.close();
+            mInsertTask.close();
+        }
+
+        if(listener != null) listener.onProgress(mImported, mSkipped, getRate(mImported + mSkipped, startTime));
+    }
+
+    private static long getRate(long rows, long startTime) {
+        return rows * 1000 / Math.max(1, Util.getTimeMs() - startTime);
+    }
+
+    private void readHeader(ArrayList<String> fields) throws IOException {
+        for(int i = 0; i < fields.size(); i++) {
+            String name = fields.get(i).trim().toLowerCase(Locale.US);
+            if(name.equals("task") || name.equals("name")) {
+                mTaskCol = i;
+            } else if(name.equals("start")) {
+                mStartCol = i;
+            } else if(name.equals("stop") || name.equals("end")) {
+                mStopCol = i;
+            } else if(name.equals("description")) {
+                mDescriptionCol = i;
+            }
+        }
+
+        if(mTaskCol == -1 || mStartCol == -1 || mStopCol == -1) {
+            throw new IOException("CSV header needs task, start and stop columns: " + fields);
+        }
+    }
+
+    // Visible tasks take precedence over deleted ones with the same name
+    private void loadTasks() {
+        Cursor c = mDb.rawQuery("SELECT _id, name FROM tasks ORDER BY hidden DESC, _id DESC", null);
+        if(c == null) return;
+
+        try {
+            while(c.moveToNext()) mTaskIds.put(c.getString(1), c.getLong(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    private boolean insertRow(ArrayList<String> fields) {
+        if(fields.size() <= Math.max(mTaskCol, Math.max(mStartCol, mStopCol))) return false;
+
+        String name = fields.get(mTaskCol).trim();
+        long start = parseTime(fields.get(mStartCol));
+        long stop = parseTime(fields.get(mStopCol));
+        if(name.length() == 0 || start == -1 || stop == -1 || stop < start) return false;
+
+        Long taskId = mTaskIds.get(name);
+        if(taskId == null) {
+            String description = mDescriptionCol != -1 && fields.size() > mDescriptionCol ?
+                    fields.get(mDescriptionCol) : "";
+
+            mInsertTask.bindString(1, name);
+            mInsertTask.bindString(2, description);
+            taskId = mInsertTask.executeInsert();
+            if(taskId == -1) return false;
+
+            mTaskIds.put(name, taskId);
+            mTasksCreated++;
+        }
+
+        mInsertTime.bindLong(1, taskId);
+        mInsertTime.bindLong(2, start);
+        mInsertTime.bindLong(3, stop);
+        return mInsertTime.executeInsert() != -1;
+    }
+
+    // Epoch milliseconds or a local date, -1 if empty or unreadable
+    private long parseTime(String s) {
+        s = s.trim();
+        if(s.length() == 0) return -1;
+
+        if(isNumber(s)) {
+            try {
+                return Long.parseLong(s);
+            } catch(NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        for(SimpleDateFormat format : mDateFormats) {
+            try {
+                return format.parse(s).getTime();
+            } catch(ParseException e) {
+                // Try the next format
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isNumber(String s) {
+        for(int i = s.charAt(0) == '-' ? 1 : 0; i < s.length(); i++) {
+            if(s.charAt(i) < '0' || s.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+    // Reads RFC 4180 style records: comma separated, optionally quoted with "" for a quote inside quotes
+    static class CsvReader {
+        private final Reader mIn;
+        private final char[] mBuffer = new char[8192];
+        private int mPos = 0, mLen = 0;
+
+        private final StringBuilder mField = new StringBuilder();
+
+        CsvReader(Reader in) {
+            mIn = in;
+        }
+
+        private int read() throws IOException {
+            if(mPos == mLen) {
+                mLen = mIn.read(mBuffer);
+                mPos = 0;
+                if(mLen <= 0) {
+                    mLen = 0;
+                    return -1;
+                }
+            }
+            return mBuffer[mPos++];
+        }
+
+        private void unread() {
+            mPos--;
+        }
+
+        // Read the next non-empty record into fields, false at the end of input
+        boolean readRecord(ArrayList<String> fields) throws IOException {
+            fields.clear();
+            mField.setLength(0);
+
+            boolean quoted = false;
+            boolean any = false;
+            while(true) {
+                int ch = read();
+
+                if(quoted) {
+                    if(ch == -1) {
+                        quoted = false;
+                    } else if(ch == '"') {
+                        int next = read();
+                        if(next == '"') {
+                            mField.append('"');
+                        } else {
+                            quoted = false;
+                            if(next != -1) unread();
+                        }
+                    } else {
+                        mField.append((char)ch);
+                    }
+                    continue;
+                }
+
+                if(ch == -1 || ch == '\n' || ch == '\r') {
+                    if(!any && mField.length() == 0) {
+                        if(ch == -1) return false;
+                        continue;  // Blank line or the \n of \r\n
+                    }
+                    fields.add(mField.toString());
+                    return true;
+                }
+
+                any = true;
+                if(ch == '"' && mField.length() == 0) {
+                    quoted = true;
+                } else if(ch == ',') {
+                    fields.add(mField.toString());
+                    mField.setLength(0);
+                } else {
+                    mField.append((char)ch);
+                }
+            }
+        }
+    }
+}
@@ -1,22 +1,26 @@
 package com.robertsebastian.timelogger;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Loader;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
-import android.widget.CursorAdapter;
+import android.widget.BaseAdapter;
 import android.widget.EditText;
-import android.widget.SimpleCursorAdapter;
 import android.widget.Spinner;
 import android.widget.TextView;
 
@@ -26,11 +30,11 @@ public class EditTimeRangeActivity extends Activity implements
     LoaderManager.LoaderCallbacks<Cursor>,
     DateTimePickerDialogFragment.OnDateTimePickedListener,
     AdapterView.OnItemSelectedListener,
+    TaskCatalog.OnChangeListener,
     TextWatcher
 {
     public static final String TAG = EditTimeRangeActivity.class.getSimpleName();
 
-    private static final int TASKS_QUERY_ID = 1;
     private static final int TIME_QUERY_ID = 2;
 
     private Calendar mStart, mStop;
@@ -42,6 +46,64 @@ public class EditTimeRangeActivity extends Activity implements
     private TextView mStartDate, mStopDate;
     private TextView mStartTime, mStopTime;
 
+    private TaskCatalog mCatalog;
+    private TaskAdapter mTaskAdapter;
+
+    // The visible tasks from the catalog, in the spinner
+    static private class TaskAdapter extends BaseAdapter {
+        private final LayoutInflater mInflater;
+        private TaskCatalog.Tasks mTasks = null;
+
+        TaskAdapter(Context context) {
+            mInflater = LayoutInflater.from(context);
+        }
+
+        public void setTasks(TaskCatalog.Tasks tasks) {
+            mTasks = tasks;
+            notifyDataSetChanged();
+        }
+
+        public TaskCatalog.Tasks getTasks() {
+            return mTasks;
+        }
+
+        @Override
+        public int getCount() {
+            return mTasks != null ? mTasks.getVisibleCount() : 0;
+        }
+
+        @Override
+        public TaskCatalog.Task getItem(int pos) {
+            return mTasks.getVisible(pos);
+        }
+
+        @Override
+        public long getItemId(int pos) {
+            return mTasks.getVisible(pos).id;
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(int pos, View v, ViewGroup parent) {
+            return bindView(pos, v, parent, android.R.layout.simple_spinner_item);
+        }
+
+        @Override
+        public View getDropDownView(int pos, View v, ViewGroup parent) {
+            return bindView(pos, v, parent, android.R.layout.simple_spinner_dropdown_item);
+        }
+
+        private View bindView(int pos, View v, ViewGroup parent, int layout) {
+            if(v == null) v = mInflater.inflate(layout, parent, false);
+            ((TextView)v.findViewById(android.R.id.text1)).setText(getItem(pos).name);
+            return v;
+        }
+    }
+
     @Override
     protected void onCreate(Bundle saved) {
         super.onCreate(saved);
@@ -60,25 +122,27 @@ public class EditTimeRangeActivity extends Activity implements
         // Update date ranges when duration is changed
         mDuration.addTextChangedListener(this);
 
-        // Fill the task spinner from the database
-        SimpleCursorAdapter adapter = new SimpleCursorAdapter(this,
-                android.R.layout.simple_spinner_item, null,
-                new String[] {"name"}, new int[] {android.R.id.text1}, 0);
-        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        // Fill the task spinner from the shared catalog, which is normally loaded already
+        mCatalog = TaskCatalog.get(this);
+        mCatalog.addListener(this);
+        mTaskAdapter = new TaskAdapter(this);
+        mTaskAdapter.setTasks(mCatalog.peekTasks());
 
         mTaskSpinner = (Spinner)findViewById(R.id.task_spinner);
-        mTaskSpinner.setAdapter(adapter);
+        mTaskSpinner.setAdapter(mTaskAdapter);
         mTaskSpinner.setOnItemSelectedListener(this);
 
-        getLoaderManager().initLoader(TASKS_QUERY_ID, null, this);
-
-        mTimeRangeId = getIntent().getExtras().getLong("id");
-
-        // Restore state if available, otherwise query initial time state from database
-        if(saved != null) {
-            mStart = Util.newCalendar(saved.getLong("start"));
-            mStop = saved.containsKey("stop") ? Util.newCalendar(saved.getLong("stop")) : null;
-            mTaskId = saved.getLong("task_id");
+        Bundle extras = getIntent().getExtras();
+        mTimeRangeId = extras.getLong("id");
+
+        // Restore state if available, otherwise take the range passed in by the time list or query it from the
+        // database
+        Bundle state = saved != null ? saved : extras.containsKey("start") ? extras : null;
+        if(state != null) {
+            mStart = Util.newCalendar(state.getLong("start"));
+            mStop = state.containsKey("stop") && state.getLong("stop") != -1 ?
+                    Util.newCalendar(state.getLong("stop")) : null;
+            mTaskId = state.getLong("task_id");
             taskUpdated();
             timeUpdated(true);
         } else {
@@ -86,6 +150,19 @@ public class EditTimeRangeActivity extends Activity implements
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCatalog.removeListener(this);
+    }
+
+    // Tasks were added, renamed or hidden while the editor was open
+    @Override
+    public void onCatalogChanged(TaskCatalog.Tasks tasks) {
+        mTaskAdapter.setTasks(tasks);
+        taskUpdated();
+    }
+
     // Save off date and task fields -- everything else can be recalculated
     @Override
     protected void onSaveInstanceState(Bundle outState) {
@@ -108,15 +185,20 @@ public class EditTimeRangeActivity extends Activity implements
 
         if(id == R.id.action_save) {
             // Update database with new values
-            ContentValues updates = new ContentValues();
+            final ContentValues updates = new ContentValues();
             updates.put("task_id", mTaskId);
             updates.put("start", mStart.getTimeInMillis());
             updates.put("stop", mStop.getTimeInMillis());
 
-            getContentResolver().update(
-                ContentUris.withAppendedId(TimeProvider.TIMES_URI, mTimeRangeId),
-                updates, null, null);
-            finish();
+            confirmOverlaps(this, new Runnable() {
+                @Override
+                public void run() {
+                    getContentResolver().update(
+                        ContentUris.withAppendedId(TimeProvider.TIMES_URI, mTimeRangeId),
+                        updates, null, null);
+                    finish();
+                }
+            }, mStart.getTimeInMillis(), mStop.getTimeInMillis(), mTimeRangeId);
         } else if(id == R.id.action_cancel) {
             // Nothing to do on cancel
             finish();
@@ -125,6 +207,27 @@ public class EditTimeRangeActivity extends Activity implements
         return super.onOptionsItemSelected(item);
     }
 
+    // Run save right away if [start, stop) doesn't overlap any ranges besides the excluded ones, otherwise only
+    // once the user has confirmed they want the overlap
+    static void confirmOverlaps(Context context, final Runnable save, long start, long stop, long... exclude) {
+        int overlaps = TimeProvider.findOverlaps(context.getContentResolver(), start, stop, exclude).length / 3;
+        if(overlaps == 0) {
+            save.run();
+            return;
+        }
+
+        new AlertDialog.Builder(context)
+                .setMessage(context.getString(R.string.overlap_warning, overlaps))
+                .setPositiveButton(R.string.overlap_save, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        save.run();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
     // Handle stop time edit button click
     public void onEditStopTime(View v) {
         Bundle args = new Bundle();
@@ -152,23 +255,13 @@ public class EditTimeRangeActivity extends Activity implements
         dialog.show(getFragmentManager(), "edit_dialog");
     }
 
-    // Update selected item in the task spinner -- intended to be called twice: once when we get the
-    // list items and once when we get the selected task ID. When the second query finishes, the
-    // spinner can be updated.
+    // Update selected item in the task spinner -- called once we have both the tasks and the selected task ID,
+    // in whichever order they arrive
     public void taskUpdated() {
-        if(mTaskId == -1) return;
+        if(mTaskId == -1 || mTaskAdapter.getTasks() == null) return;
 
-        Cursor c = ((CursorAdapter)mTaskSpinner.getAdapter()).getCursor();
-        if(c == null) return;
-
-        c.moveToFirst();
-        for(int i = 0; i < c.getCount(); i++) {
-            c.moveToPosition(i);
-            if(c.getLong(c.getColumnIndex("_id")) == mTaskId) {
-                mTaskSpinner.setSelection(i, false);
-                break;
-            }
-        }
+        int pos = mTaskAdapter.getTasks().getPosition(mTaskId);
+        if(pos != -1) mTaskSpinner.setSelection(pos, false);
     }
 
     // Update time and duration fields
@@ -197,11 +290,6 @@ public class EditTimeRangeActivity extends Activity implements
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle bundle) {
         switch(id) {
-        case TASKS_QUERY_ID:
-            return new CursorLoader(this,
-                    TimeProvider.TASKS_URI,
-                    new String[] {"name", "_id"},
-                    "hidden=0", null, "name asc");
         case TIME_QUERY_ID:
             return new CursorLoader(this,
                     ContentUris.withAppendedId(TimeProvider.TIMES_URI, mTimeRangeId),
@@ -217,11 +305,6 @@ public class EditTimeRangeActivity extends Activity implements
         c.moveToFirst();
 
         switch(cursorLoader.getId()) {
-        case TASKS_QUERY_ID:
-            ((SimpleCursorAdapter)mTaskSpinner.getAdapter()).swapCursor(c);
-            taskUpdated();
-            break;
-
         case TIME_QUERY_ID:
             mStart = Util.newCalendar(c.getLong(c.getColumnIndex("start")));
             long stopTime = c.getLong(c.getColumnIndex("stop"));
@@ -235,11 +318,7 @@ public class EditTimeRangeActivity extends Activity implements
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> cursorLoader) {
-        if(cursorLoader.getId() == TASKS_QUERY_ID) {
-            ((SimpleCursorAdapter)mTaskSpinner.getAdapter()).swapCursor(null);
-        }
-    }
+    public void onLoaderReset(Loader<Cursor> cursorLoader) {}
 
     // Update time fields when dialog returns
     @Override
@@ -258,11 +337,7 @@ public class EditTimeRangeActivity extends Activity implements
     // Update saved task ID when new item selected in spinner
     @Override
     public void onItemSelected(AdapterView<?> adapterView, View view, int pos, long id) {
-        Cursor c = ((SimpleCursorAdapter)mTaskSpinner.getAdapter()).getCursor();
-        if(c == null) return;
-
-        c.moveToPosition(pos);
-        mTaskId = c.getLong(c.getColumnIndex("_id"));
+        mTaskId = id;
     }
 
     @Override
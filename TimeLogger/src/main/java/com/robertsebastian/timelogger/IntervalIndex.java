@@ -0,0 +1,183 @@
+package com.robertsebastian.timelogger;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Time ranges [start, end) held in a treap ordered by (start, id), with each node also keeping the latest end in its
+// subtree. Looking up the ranges overlapping a window skips every subtree that ends before the window or starts
+// after it, so it takes O(log n + overlaps). Open ranges are added with an end of Long.MAX_VALUE.
+public class IntervalIndex {
+    private static class Node {
+        final long id, start, end;
+        final int priority;
+        long maxEnd;
+        Node left, right;
+
+        Node(long id, long start, long end, int priority) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+            this.priority = priority;
+            maxEnd = end;
+        }
+
+        void update() {
+            maxEnd = end;
+            if(left != null && left.maxEnd > maxEnd) maxEnd = left.maxEnd;
+            if(right != null && right.maxEnd > maxEnd) maxEnd = right.maxEnd;
+        }
+    }
+
+    // Growable (id, start, end) triples
+    private static class Triples {
+        long[] values = new long[3 * 8];
+        int length = 0;
+
+        void add(long id, long start, long end) {
+            if(length + 3 > values.length) values = Arrays.copyOf(values, values.length * 2);
+            values[length++] = id;
+            values[length++] = start;
+            values[length++] = end;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, length);
+        }
+    }
+
+    private final Random mRandom = new Random();
+    private Node mRoot = null;
+    private int mSize = 0;
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized void clear() {
+        mRoot = null;
+        mSize = 0;
+    }
+
+    public synchronized void add(long id, long start, long end) {
+        mRoot = insert(mRoot, new Node(id, start, end, mRandom.nextInt()));
+        mSize++;
+    }
+
+    // Remove the range with the given ID and start, false if there's none
+    public synchronized boolean remove(long id, long start) {
+        int size = mSize;
+        mRoot = delete(mRoot, id, start);
+        return mSize != size;
+    }
+
+    // Ranges overlapping [a, b) as (id, start, end) triples in start order
+    public synchronized long[] findOverlaps(long a, long b) {
+        Triples out = new Triples();
+        collect(mRoot, a, b, out);
+        return out.toArray();
+    }
+
+    // Every pair of overlapping ranges as (id, id) pairs, up to maxPairs of them. One sweep in start order: each
+    // range is only compared with the ranges starting before it ends.
+    public synchronized long[] findAllOverlaps(int maxPairs) {
+        Triples sorted = new Triples();
+        collect(mRoot, Long.MIN_VALUE, Long.MAX_VALUE, sorted);
+        long[] v = sorted.values;
+        int n = sorted.length / 3;
+
+        long[] pairs = new long[16];
+        int count = 0;
+        for(int i = 0; i < n && count < maxPairs; i++) {
+            long end = v[3 * i + 2];
+            if(end <= v[3 * i + 1]) continue;  // Empty
+
+            for(int j = i + 1; j < n && v[3 * j + 1] < end && count < maxPairs; j++) {
+                if(v[3 * j + 2] <= v[3 * j + 1]) continue;
+
+                if(2 * count + 2 > pairs.length) pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                pairs[2 * count] = v[3 * i];
+                pairs[2 * count + 1] = v[3 * j];
+                count++;
+            }
+        }
+        return Arrays.copyOf(pairs, 2 * count);
+    }
+
+    private static int compare(long start, long id, Node n) {
+        if(start != n.start) return start < n.start ? -1 : 1;
+        return id < n.id ? -1 : (id == n.id ? 0 : 1);
+    }
+
+    private static Node rotateRight(Node n) {
+        Node l = n.left;
+        n.left = l.right;
+        l.right = n;
+        n.update();
+        l.update();
+        return l;
+    }
+
+    private static Node rotateLeft(Node n) {
+        Node r = n.right;
+        n.right = r.left;
+        r.left = n;
+        n.update();
+        r.update();
+        return r;
+    }
+
+    private static Node insert(Node n, Node node) {
+        if(n == null) return node;
+
+        if(compare(node.start, node.id, n) < 0) {
+            n.left = insert(n.left, node);
+            if(n.left.priority > n.priority) return rotateRight(n);
+        } else {
+            n.right = insert(n.right, node);
+            if(n.right.priority > n.priority) return rotateLeft(n);
+        }
+        n.update();
+        return n;
+    }
+
+    private Node delete(Node n, long id, long start) {
+        if(n == null) return null;
+
+        int c = compare(start, id, n);
+        if(c < 0) {
+            n.left = delete(n.left, id, start);
+        } else if(c > 0) {
+            n.right = delete(n.right, id, start);
+        } else {
+            mSize--;
+            return merge(n.left, n.right);
+        }
+        n.update();
+        return n;
+    }
+
+    // Join two treaps where everything in a sorts before everything in b
+    private static Node merge(Node a, Node b) {
+        if(a == null) return b;
+        if(b == null) return a;
+
+        if(a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.update();
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            b.update();
+            return b;
+        }
+    }
+
+    private static void collect(Node n, long a, long b, Triples out) {
+        if(n == null || n.maxEnd <= a) return;
+
+        collect(n.left, a, b, out);
+        if(n.start >= b) return;  // Everything to the right starts later still
+        if(n.end > a) out.add(n.id, n.start, n.end);
+        collect(n.right, a, b, out);
+    }
+}
@@ -0,0 +1,60 @@
+package com.robertsebastian.timelogger;
+
+import java.util.Locale;
+
+// Counts latencies in power-of-two millisecond buckets (<1, <2, <4 ... ms), which is fine grained enough to tell a
+// dropped frame from a slow disk without keeping every sample around
+public class LatencyHistogram {
+    private static final int BUCKETS = 20;  // Last bucket holds everything from ~4.4 minutes up
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount = 0;
+    private long mMax = 0;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public synchronized void record(long ms) {
+        if(ms < 0) ms = 0;
+
+        int bucket = 64 - Long.numberOfLeadingZeros(ms);
+        mCounts[Math.min(bucket, BUCKETS - 1)]++;
+        mCount++;
+        mMax = Math.max(mMax, ms);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    // Upper bound in milliseconds of the bucket holding the given fraction (0-1) of samples, 0 if there are none
+    public synchronized long getPercentile(double fraction) {
+        if(mCount == 0) return 0;
+
+        long rank = Math.max(1, (long)Math.ceil(fraction * mCount));
+        long seen = 0;
+        for(int b = 0; b < BUCKETS - 1; b++) {
+            seen += mCounts[b];
+            if(seen >= rank) return Math.min(1L << b, mMax);
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for(int b = 0; b < BUCKETS; b++) mCounts[b] = 0;
+        mCount = 0;
+        mMax = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s: n=%d p50<=%dms p90<=%dms p99<=%dms max=%dms", mName, mCount,
+                getPercentile(0.5), getPercentile(0.9), getPercentile(0.99), mMax);
+    }
+}
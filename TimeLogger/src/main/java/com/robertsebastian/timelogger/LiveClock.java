@@ -0,0 +1,59 @@
+package com.robertsebastian.timelogger;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+// Advances running durations in memory between database loads. Durations in a loaded cursor are correct as of
+// the time it was delivered, so a running range only needs the time elapsed since then added on. The clock only
+// ticks while something is running and its owner is visible.
+public class LiveClock {
+    // Displayed durations change every 0.001 hours
+    private static final long TICK_INTERVAL = 3600;
+
+    public interface OnTickListener {
+        public void onTick(long elapsed);
+    }
+
+    private final Handler mHandler = new Handler();
+    private final OnTickListener mListener;
+
+    private long mBaseTime = 0;
+    private boolean mRunning = false;
+    private boolean mVisible = false;
+
+    private final Runnable mTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long started = SystemClock.uptimeMillis();
+            mListener.onTick(getElapsed());
+            ProviderMetrics.get().record("ui live clock tick", SystemClock.uptimeMillis() - started, 0);
+            mHandler.postDelayed(this, TICK_INTERVAL);
+        }
+    };
+
+    public LiveClock(OnTickListener listener) {
+        mListener = listener;
+    }
+
+    // Called when new data is loaded: whether it contains a running range and when its durations were computed
+    public void reset(boolean running) {
+        mBaseTime = Util.getTimeMs();
+        mRunning = running;
+        update();
+    }
+
+    public void setVisible(boolean visible) {
+        mVisible = visible;
+        update();
+    }
+
+    // Time to add to running durations from the last load
+    public long getElapsed() {
+        return mRunning ? Util.getTimeMs() - mBaseTime : 0;
+    }
+
+    private void update() {
+        mHandler.removeCallbacks(mTickRunnable);
+        if(mRunning && mVisible) mHandler.postDelayed(mTickRunnable, TICK_INTERVAL);
+    }
+}
@@ -0,0 +1,128 @@
+package com.robertsebastian.timelogger;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+// In-process stand-in for the sync server, so SyncEngine can be run end to end without a network: requests and
+// replies still go through their encoded wire form, so SyncEngine's byte counts are what a network would carry.
+// Keeps the latest version of every row, tombstones included, stamped with the server sequence number of the push
+// that wrote it. Later pushes win. A pull returns the rows after the client's cursor that other clients wrote.
+public class LoopbackSyncServer implements SyncTransport {
+    private static final int PULL_BATCH = 5000;
+
+    private static LoopbackSyncServer sInstance = null;
+
+    public static synchronized LoopbackSyncServer get() {
+        if(sInstance == null) sInstance = new LoopbackSyncServer();
+        return sInstance;
+    }
+
+    static private class Entry {
+        final long clientId;
+        final SyncBatch.Change change;
+
+        Entry(long clientId, SyncBatch.Change change) {
+            this.clientId = clientId;
+            this.change = change;
+        }
+    }
+
+    private final TreeMap<Long, Entry> mEntries = new TreeMap<Long, Entry>();  // By sequence number
+    private final HashMap<String, Long> mSeqs = new HashMap<String, Long>();    // By table and gid
+    private long mSeq = 0;
+
+    @Override
+    public synchronized byte[] exchange(byte[] request) throws IOException {
+        SyncBatch batch = SyncBatch.decode(request);
+        SyncBatch reply;
+        if(batch.kind == SyncBatch.PUSH) {
+            reply = push(batch);
+        } else if(batch.kind == SyncBatch.PULL) {
+            reply = pull(batch);
+        } else {
+            throw new IOException("Unexpected sync batch kind " + batch.kind);
+        }
+
+        return reply.encode();
+    }
+
+    private SyncBatch push(SyncBatch batch) {
+        for(SyncBatch.Change c : batch.changes) {
+            Long old = mSeqs.put(c.table + ":" + c.gid, ++mSeq);
+            if(old != null) mEntries.remove(old);
+            mEntries.put(mSeq, new Entry(batch.clientId, c));
+        }
+        return new SyncBatch(SyncBatch.REPLY, 0, mSeq, false, new ArrayList<SyncBatch.Change>());
+    }
+
+    private SyncBatch pull(SyncBatch batch) {
+        ArrayList<SyncBatch.Change> changes = new ArrayList<SyncBatch.Change>();
+        long cursor = batch.cursor;
+        for(Map.Entry<Long, Entry> entry : mEntries.tailMap(batch.cursor, false).entrySet()) {
+            if(changes.size() == PULL_BATCH) {
+                return new SyncBatch(SyncBatch.REPLY, 0, cursor, true, changes);
+            }
+
+            cursor = entry.getKey();
+            if(entry.getValue().clientId != batch.clientId) changes.add(entry.getValue().change);
+        }
+        return new SyncBatch(SyncBatch.REPLY, 0, Math.max(cursor, mSeq), false, changes);
+    }
+
+    // Live rows, tombstones left out
+    public synchronized int size() {
+        int size = 0;
+        for(Entry entry : mEntries.values()) {
+            if(!entry.change.deleted) size++;
+        }
+        return size;
+    }
+
+    // Digest of the live rows, see SyncBatch.addToDigest(). Deleting a task doesn't touch its ranges, so like the
+    // client, ranges whose task is gone count with no task.
+    public synchronized String digest() {
+        HashSet<String> tasks = new HashSet<String>();
+        for(Entry entry : mEntries.values()) {
+            if(!entry.change.deleted && entry.change.table == SyncBatch.TASK) tasks.add(entry.change.gid);
+        }
+
+        ArrayList<SyncBatch.Change> rows = new ArrayList<SyncBatch.Change>();
+        for(Entry entry : mEntries.values()) {
+            SyncBatch.Change c = entry.change;
+            if(c.deleted) continue;
+
+            if(c.table == SyncBatch.TIME && !tasks.contains(c.taskGid)) {
+                SyncBatch.Change orphan = new SyncBatch.Change();
+                orphan.table = c.table;
+                orphan.gid = c.gid;
+                orphan.taskGid = "";
+                orphan.start = c.start;
+                orphan.stop = c.stop;
+                c = orphan;
+            }
+            rows.add(c);
+        }
+        Collections.sort(rows, new Comparator<SyncBatch.Change>() {
+            @Override
+            public int compare(SyncBatch.Change a, SyncBatch.Change b) {
+                return a.table != b.table ? a.table - b.table : a.gid.compareTo(b.gid);
+            }
+        });
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for(SyncBatch.Change c : rows) SyncBatch.addToDigest(digest, c);
+            return SyncBatch.toHex(digest.digest());
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -47,6 +47,7 @@ public class MainActivity extends Activity implements ActionBar.OnNavigationList
 		// Add fragmemts
 		if(mFragments.get(mTags[0]) == null) mFragments.put(mTags[0], new TaskListFragment());
 		if(mFragments.get(mTags[1]) == null) mFragments.put(mTags[1], new TimeListFragment());
+		if(mFragments.get(mTags[2]) == null) mFragments.put(mTags[2], new TimelineFragment());
 
         // Go to default nav item or restore
         if(savedInstanceState == null) {
@@ -0,0 +1,98 @@
+package com.robertsebastian.timelogger;
+
+import android.app.Activity;
+import android.graphics.Typeface;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+// Debug screen showing the provider's metrics dump: operation latencies, row counts and the slowest queries. Can
+// also run a sync against the loopback server to check convergence and bytes on the wire.
+public class MetricsActivity extends Activity {
+    public static final String TAG = MetricsActivity.class.getSimpleName();
+
+    private TextView mContent;
+
+    // Fetches the dump text off the UI thread, optionally resetting the counters first
+    static private class LoadTask extends AsyncTask<Boolean, Void, String> {
+        private final MetricsActivity mActivity;
+
+        LoadTask(MetricsActivity activity) {
+            mActivity = activity;
+        }
+
+        @Override
+        protected String doInBackground(Boolean... reset) {
+            Bundle result = mActivity.getContentResolver().call(TimeProvider.TASKS_URI,
+                    TimeProvider.METHOD_GET_METRICS, reset[0] ? "reset" : null, null);
+            return result != null ? result.getString("metrics") : "";
+        }
+
+        @Override
+        protected void onPostExecute(String metrics) {
+            mActivity.mContent.setText(metrics);
+        }
+    }
+
+    // Syncs with the loopback server and then fetches the dump, which ends with the sync's results
+    static private class SyncTask extends AsyncTask<Void, Void, String> {
+        private final MetricsActivity mActivity;
+
+        SyncTask(MetricsActivity activity) {
+            mActivity = activity;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            mActivity.getContentResolver().call(TimeProvider.TASKS_URI, TimeProvider.METHOD_SYNC, null, null);
+            Bundle result = mActivity.getContentResolver().call(TimeProvider.TASKS_URI,
+                    TimeProvider.METHOD_GET_METRICS, null, null);
+            return result != null ? result.getString("metrics") : "";
+        }
+
+        @Override
+        protected void onPostExecute(String metrics) {
+            mActivity.mContent.setText(metrics);
+        }
+    }
+
+    @Override
+    protected void onCreate(Bundle saved) {
+        super.onCreate(saved);
+        setContentView(R.layout.activity_report);
+
+        mContent = (TextView)findViewById(R.id.content);
+        mContent.setTypeface(Typeface.MONOSPACE);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        new LoadTask(this).execute(false);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.metrics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+
+        if(id == R.id.action_refresh) {
+            new LoadTask(this).execute(false);
+        } else if(id == R.id.action_reset) {
+            new LoadTask(this).execute(true);
+        } else if(id == R.id.action_sync_loopback) {
+            new SyncTask(this).execute();
+        } else {
+            return super.onOptionsItemSelected(item);
+        }
+
+        return true;
+    }
+}
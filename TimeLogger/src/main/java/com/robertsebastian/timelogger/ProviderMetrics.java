@@ -0,0 +1,87 @@
+package com.robertsebastian.timelogger;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+
+// Counts, rows and latency histograms for TimeProvider operations, keyed by operation and URI (e.g. "query times",
+// "update tasks/#", "call switch_task"), plus the slowest queries with their SQL. Recording is a map lookup and a
+// few increments under a lock, so it stays on in release builds. There's one per process: the UI records its own
+// latencies here too (e.g. "ui switch draw"), and they're dumped along with the provider's.
+public class ProviderMetrics {
+    private static final int SLOW_QUERIES = 10;
+
+    private static final ProviderMetrics sInstance = new ProviderMetrics();
+
+    public static ProviderMetrics get() {
+        return sInstance;
+    }
+
+    private static class Stats {
+        final LatencyHistogram latency;
+        long rows = 0;
+
+        Stats(String name) {
+            latency = new LatencyHistogram(name);
+        }
+    }
+
+    private final HashMap<String, Stats> mStats = new HashMap<String, Stats>();
+
+    // Slowest queries, slowest first
+    private final long[] mSlowMs = new long[SLOW_QUERIES];
+    private final String[] mSlowSql = new String[SLOW_QUERIES];
+    private int mSlowCount = 0;
+
+    private long mSince = Util.getTimeMs();
+
+    public synchronized void record(String operation, long ms, long rows) {
+        Stats stats = mStats.get(operation);
+        if(stats == null) {
+            stats = new Stats(operation);
+            mStats.put(operation, stats);
+        }
+        stats.latency.record(ms);
+        stats.rows += rows;
+    }
+
+    public synchronized void recordQuery(String operation, long ms, long rows, String sql) {
+        record(operation, ms, rows);
+
+        // Insert into the slow list if it beats the fastest entry
+        if(mSlowCount == SLOW_QUERIES && ms <= mSlowMs[SLOW_QUERIES - 1]) return;
+
+        int i = Math.min(mSlowCount, SLOW_QUERIES - 1);
+        for(; i > 0 && mSlowMs[i - 1] < ms; i--) {
+            mSlowMs[i] = mSlowMs[i - 1];
+            mSlowSql[i] = mSlowSql[i - 1];
+        }
+        mSlowMs[i] = ms;
+        mSlowSql[i] = sql;
+        mSlowCount = Math.min(mSlowCount + 1, SLOW_QUERIES);
+    }
+
+    public synchronized void reset() {
+        mStats.clear();
+        mSlowCount = 0;
+        mSince = Util.getTimeMs();
+    }
+
+    public synchronized void dump(PrintWriter out) {
+        out.println("Provider metrics since " + Util.formatDate(mSince) + " " + Util.formatTime(mSince));
+
+        ArrayList<String> operations = new ArrayList<String>(mStats.keySet());
+        Collections.sort(operations);
+        for(String operation : operations) {
+            Stats stats = mStats.get(operation);
+            out.println("  " + stats.latency + " rows=" + stats.rows);
+        }
+
+        out.println("Slowest queries:");
+        for(int i = 0; i < mSlowCount; i++) {
+            out.println(String.format(Locale.US, "  %5dms %s", mSlowMs[i], mSlowSql[i]));
+        }
+    }
+}
@@ -1,78 +1,224 @@
 package com.robertsebastian.timelogger;
 
 import android.app.Activity;
+import android.app.LoaderManager;
+import android.content.AsyncTaskLoader;
+import android.content.Context;
 import android.content.Intent;
+import android.content.Loader;
+import android.database.ContentObserver;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.text.Html;
-import android.util.Log;
+import android.text.TextUtils;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.widget.TextView;
 
-import java.util.Locale;
-
-public class ReportActivity extends Activity
+// Shows the time logged per task over a date range (passed as "start"/"stop" extras), bucketed by day, week or month
+public class ReportActivity extends Activity implements
+    LoaderManager.LoaderCallbacks<ReportEngine.Report>
 {
     public static final String TAG = ReportActivity.class.getSimpleName();
 
+    private long mStart, mStop;
+    private int mBucketSize;
+
+    private ReportEngine.Report mReport = null;
+    private TextView mContent;
+
+    // Builds a report off the UI thread and rebuilds it when logged times in its range change
+    static private class ReportLoader extends AsyncTaskLoader<ReportEngine.Report> {
+        private final int mBucketSize;
+        private final long mStart, mStop;
+
+        private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onContentChanged();
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                long lastDay = mStop == Long.MAX_VALUE ? mStop : WindowCursorLoader.toDay(mStop - 1);
+                if(TimeProvider.touchesDays(uri, WindowCursorLoader.toDay(mStart), lastDay)) onContentChanged();
+            }
+        };
+        private boolean mObserving = false;
+        private ReportEngine.Report mReport = null;
+
+        ReportLoader(Context context, int bucketSize, long start, long stop) {
+            super(context);
+            mBucketSize = bucketSize;
+            mStart = start;
+            mStop = stop;
+        }
+
+        @Override
+        public ReportEngine.Report loadInBackground() {
+            return ReportEngine.getReport(getContext(), mBucketSize, mStart, mStop);
+        }
+
+        @Override
+        public void deliverResult(ReportEngine.Report report) {
+            mReport = report;
+            if(isStarted()) super.deliverResult(report);
+        }
+
+        @Override
+        protected void onStartLoading() {
+            if(!mObserving) {
+                getContext().getContentResolver().registerContentObserver(TimeProvider.TIMES_URI, true, mObserver);
+                mObserving = true;
+            }
+
+            if(mReport != null) deliverResult(mReport);
+            if(takeContentChanged() || mReport == null) forceLoad();
+        }
+
+        @Override
+        protected void onStopLoading() {
+            cancelLoad();
+        }
+
+        @Override
+        protected void onReset() {
+            onStopLoading();
+            mReport = null;
+
+            if(mObserving) {
+                getContext().getContentResolver().unregisterContentObserver(mObserver);
+                mObserving = false;
+            }
+        }
+    }
+
     @Override
     protected void onCreate(Bundle saved) {
         super.onCreate(saved);
         setContentView(R.layout.activity_report);
 
-        TextView content = (TextView)findViewById(R.id.content);
+        mContent = (TextView)findViewById(R.id.content);
 
-        String [][] vals = new String[][] {
-                {"Task",     "Sun", "Mon",  "Tue",  "Wed",  "Thu",   "Fri",  "Sat"},
-                {"Task ONE", "",    "2.00", "3.00", "",     "",      "2.20", "5.00"},
-                {"Task TWO", "",    "5.00", "6.25", "7.00", "10.10", "2.20", "5.00"}
-        };
+        Intent intent = getIntent();
+        mStart = intent.getLongExtra("start", Long.MIN_VALUE);
+        mStop  = intent.getLongExtra("stop", Long.MAX_VALUE);
 
-        StringBuilder str = new StringBuilder();
+        mBucketSize = saved != null ? saved.getInt("bucket_size") : ReportEngine.getDefaultBucketSize(mStart, mStop);
 
-        str.append("<tt>TABLE 1</tt><br />");
-        str.append(buildTable(vals));
-        str.append("<br /><br /><tt>TABLE 2</tt><br />");
-        str.append(buildTable(vals));
-        str.append("<br /><br /><tt>TABLE 3</tt><br />");
-        str.append(buildTable(vals));
+        getLoaderManager().initLoader(0, null, this);
+    }
 
-        content.setText(Html.fromHtml(str.toString()));
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt("bucket_size", mBucketSize);
+    }
 
-        Intent i = new Intent(Intent.ACTION_SEND);
-        i.setType("text/html");
-        i.putExtra(Intent.EXTRA_EMAIL, new String[]{"test@test.org"});
-        i.putExtra(Intent.EXTRA_SUBJECT, "Report");
-        i.putExtra(Intent.EXTRA_TEXT, Html.fromHtml(str.toString()));
-        //i.putExtra(Intent.EXTRA_TEXT, "Text");
-        //i.putExtra(Intent.EXTRA_TEXT, Html.fromHtml(str.toString()));
-
-        startActivity(Intent.createChooser(i, "Email"));
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.report, menu);
+        return true;
     }
 
-    private String buildTable(String [][] vals) {
-        int [] maxLen = new int[vals[0].length];
-        for(int r = 0; r < vals.length; r++) {
-            for(int c = 0; c < vals[r].length; c++) {
-                if(vals[r][c].length() > maxLen[c]) maxLen[c] = vals[r][c].length();
-            }
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        int checked = mBucketSize == ReportEngine.BUCKET_DAY ? R.id.action_bucket_day :
+                      mBucketSize == ReportEngine.BUCKET_WEEK ? R.id.action_bucket_week : R.id.action_bucket_month;
+
+        MenuItem item = menu.findItem(checked);
+        if(item != null) item.setChecked(true);
+
+        Util.setMenuItemEnabled(menu, R.id.action_send, mReport != null);
+        Util.setMenuItemEnabled(menu, R.id.action_export_csv, mReport != null);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+
+        if(id == R.id.action_bucket_day) {
+            setBucketSize(ReportEngine.BUCKET_DAY);
+        } else if(id == R.id.action_bucket_week) {
+            setBucketSize(ReportEngine.BUCKET_WEEK);
+        } else if(id == R.id.action_bucket_month) {
+            setBucketSize(ReportEngine.BUCKET_MONTH);
+        } else if(id == R.id.action_send) {
+            sendReport();
+        } else if(id == R.id.action_export_csv) {
+            sendExport();
+        } else {
+            return super.onOptionsItemSelected(item);
         }
 
-        String [] colFormat = new String[maxLen.length];
-        for(int i = 0; i < maxLen.length; i++) colFormat[i] = String.format(Locale.US, "%%-%ds", maxLen[i]);
+        return true;
+    }
 
-        StringBuilder str = new StringBuilder();
-        for(int r = 0; r < vals.length; r++) {
-            str.append("<tt>");
-            for(int c = 0; c < vals[r].length; c++) {
-                for(int i = 0; i < maxLen[c] - vals[r][c].length(); i++) str.append("&nbsp;");
-                str.append(vals[r][c]);
-                str.append("&nbsp;");
-            }
-            str.append("</tt><br />");
-            str.append(System.getProperty("line.separator"));
+    private void setBucketSize(int bucketSize) {
+        if(bucketSize == mBucketSize) return;
+
+        mBucketSize = bucketSize;
+        getLoaderManager().restartLoader(0, null, this);
+        invalidateOptionsMenu();
+    }
+
+    // Send the report as a plain text table
+    private void sendReport() {
+        if(mReport == null) return;
+
+        Intent i = new Intent(Intent.ACTION_SEND);
+        i.setType("text/plain");
+        i.putExtra(Intent.EXTRA_SUBJECT, "Report: " + getRangeText(mReport));
+        i.putExtra(Intent.EXTRA_TEXT, mReport.toText());
+
+        startActivity(Intent.createChooser(i, "Send report"));
+    }
+
+    // Send the time ranges in the report as a CSV file streamed from the provider
+    private void sendExport() {
+        if(mReport == null) return;
+
+        Uri uri = TimeProvider.EXPORT_CSV_URI.buildUpon()
+                .appendQueryParameter("start", Long.toString(mReport.start))
+                .appendQueryParameter("stop", Long.toString(mReport.stop))
+                .build();
+
+        Intent i = new Intent(Intent.ACTION_SEND);
+        i.setType(TimeExporter.CSV_TYPE);
+        i.putExtra(Intent.EXTRA_SUBJECT, "Times: " + getRangeText(mReport));
+        i.putExtra(Intent.EXTRA_STREAM, uri);
+        i.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        startActivity(Intent.createChooser(i, "Export times"));
+    }
+
+    private static String getRangeText(ReportEngine.Report report) {
+        return Util.formatDateRange(report.start, report.stop - 1);
+    }
+
+    @Override
+    public Loader<ReportEngine.Report> onCreateLoader(int id, Bundle args) {
+        return new ReportLoader(this, mBucketSize, mStart, mStop);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<ReportEngine.Report> loader, ReportEngine.Report report) {
+        mReport = report;
+        invalidateOptionsMenu();
+
+        if(report == null) {
+            mContent.setText("");
+            return;
         }
 
-        Log.d(TAG, str.toString());
+        String header = "<tt>" + TextUtils.htmlEncode(getRangeText(report)) + "</tt><br /><br />";
+        mContent.setText(Html.fromHtml(header + report.toHtml()));
+    }
 
-        return str.toString();
+    @Override
+    public void onLoaderReset(Loader<ReportEngine.Report> loader) {
+        mReport = null;
     }
 }
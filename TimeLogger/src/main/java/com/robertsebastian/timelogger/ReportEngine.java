@@ -0,0 +1,278 @@
+package com.robertsebastian.timelogger;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+// Builds task x time bucket duration reports. The ranges overlapping the report are looked up in the Timeline
+// snapshot and clipped into a flat matrix of durations, so the cost depends on the ranges in the report and not on
+// the size of the history. Finished reports are cached until the timeline or the task names change.
+public class ReportEngine {
+    public static final int BUCKET_DAY   = 0;
+    public static final int BUCKET_WEEK  = 1;
+    public static final int BUCKET_MONTH = 2;
+
+    // Reports covering a running range go stale as it runs, so they're only reused for this long
+    private static final long RUNNING_CACHE_TIME = 60 * 1000;
+
+    private static final int CACHE_SIZE = 8;
+    private static final LruCache<String, Report> sCache = new LruCache<String, Report>(CACHE_SIZE);
+
+    public static class Report {
+        public final int bucketSize;
+        public final long start;
+        public final long stop;
+
+        public final long[] bucketDays;    // First epoch day of each bucket
+        public final String[] taskNames;   // Sorted by name
+        public final long[] durations;     // [task * bucketDays.length + bucket]
+        public final long[] taskTotals;
+        public final long[] bucketTotals;
+        public final long total;
+
+        private final long mVersion;  // Of the timeline snapshot
+        private final TaskCatalog.Tasks mTasks;
+        private final long mCreated;
+        private final boolean mRunning;
+
+        private String mHtml = null;
+        private String mText = null;
+
+        private Report(int bucketSize, long start, long stop, long[] bucketDays, String[] taskNames,
+                       long[] durations, long version, TaskCatalog.Tasks tasks, long created, boolean running) {
+            this.bucketSize = bucketSize;
+            this.start = start;
+            this.stop = stop;
+            this.bucketDays = bucketDays;
+            this.taskNames = taskNames;
+            this.durations = durations;
+
+            mVersion = version;
+            mTasks = tasks;
+            mCreated = created;
+            mRunning = running;
+
+            int buckets = bucketDays.length;
+            taskTotals = new long[taskNames.length];
+            bucketTotals = new long[buckets];
+            long total = 0;
+            for(int t = 0; t < taskNames.length; t++) {
+                for(int b = 0; b < buckets; b++) {
+                    long duration = durations[t * buckets + b];
+                    taskTotals[t] += duration;
+                    bucketTotals[b] += duration;
+                    total += duration;
+                }
+            }
+            this.total = total;
+        }
+
+        private boolean isCurrent(long version, TaskCatalog.Tasks tasks, long now) {
+            return version == mVersion && tasks == mTasks && (!mRunning || now - mCreated < RUNNING_CACHE_TIME);
+        }
+
+        // Monospace table in the form shown by ReportActivity
+        public synchronized String toHtml() {
+            if(mHtml == null) mHtml = render(true);
+            return mHtml;
+        }
+
+        // Plain text table for sending
+        public synchronized String toText() {
+            if(mText == null) mText = render(false);
+            return mText;
+        }
+
+        // Header row, a row per task and a totals row. Blank cells where nothing was logged.
+        private String[][] buildCells() {
+            int buckets = bucketDays.length;
+            String[][] cells = new String[taskNames.length + 2][buckets + 2];
+
+            cells[0][0] = "Task";
+            for(int b = 0; b < buckets; b++) {
+                cells[0][b + 1] = bucketSize == BUCKET_MONTH ?
+                        Util.formatMonth(bucketDays[b]) : Util.formatShortDay(bucketDays[b]);
+            }
+            cells[0][buckets + 1] = "Total";
+
+            for(int t = 0; t < taskNames.length; t++) {
+                String[] row = cells[t + 1];
+                row[0] = taskNames[t];
+                for(int b = 0; b < buckets; b++) row[b + 1] = formatCell(durations[t * buckets + b]);
+                row[buckets + 1] = formatCell(taskTotals[t]);
+            }
+
+            String[] row = cells[taskNames.length + 1];
+            row[0] = "Total";
+            for(int b = 0; b < buckets; b++) row[b + 1] = formatCell(bucketTotals[b]);
+            row[buckets + 1] = formatCell(total);
+
+            return cells;
+        }
+
+        private static String formatCell(long duration) {
+            return duration == 0 ? "" : Util.formatDuration(duration);
+        }
+
+        private String render(boolean html) {
+            String[][] cells = buildCells();
+            String space = html ? "&nbsp;" : " ";
+
+            int[] widths = new int[cells[0].length];
+            for(String[] row : cells) {
+                for(int c = 0; c < row.length; c++) widths[c] = Math.max(widths[c], row[c].length());
+            }
+
+            StringBuilder str = new StringBuilder();
+            for(String[] row : cells) {
+                if(html) str.append("<tt>");
+                for(int c = 0; c < row.length; c++) {
+                    // Task names are left aligned, durations right aligned
+                    int pad = widths[c] - row[c].length();
+                    if(c > 0) appendRepeated(str, space, pad);
+                    str.append(html ? TextUtils.htmlEncode(row[c]).replace(" ", space) : row[c]);
+                    if(c == 0) appendRepeated(str, space, pad);
+                    str.append(space);
+                }
+                if(html) str.append("</tt><br />");
+                str.append('\n');
+            }
+            return str.toString();
+        }
+
+        private static void appendRepeated(StringBuilder str, String s, int count) {
+            for(int i = 0; i < count; i++) str.append(s);
+        }
+    }
+
+    // A bucket size that keeps the table a reasonable width for the range
+    public static int getDefaultBucketSize(long start, long stop) {
+        if(start == Long.MIN_VALUE || stop == Long.MAX_VALUE) return BUCKET_MONTH;
+
+        long days = Util.toEpochDay(stop - 1) - Util.toEpochDay(start) + 1;
+        if(days <= 14) return BUCKET_DAY;
+        if(days <= 16 * 7) return BUCKET_WEEK;
+        return BUCKET_MONTH;
+    }
+
+    // Report on [start, stop), either of which may be open (Long.MIN_VALUE/MAX_VALUE). Blocks on the database if
+    // the timeline or task catalog are behind.
+    public static Report getReport(Context context, int bucketSize, long start, long stop) {
+        Timeline.Snapshot timeline = Timeline.get(context).getSnapshot();
+        TaskCatalog.Tasks tasks = TaskCatalog.get(context).getTasks();
+        if(timeline == null || tasks == null) return null;
+        long now = Util.getTimeMs();
+
+        String key = bucketSize + ":" + start + ":" + stop;
+        Report report = sCache.get(key);
+        if(report != null && report.isCurrent(timeline.version, tasks, now)) return report;
+
+        report = buildReport(timeline, tasks, bucketSize, start, stop, now);
+        sCache.put(key, report);
+        return report;
+    }
+
+    private static Report buildReport(Timeline.Snapshot timeline, TaskCatalog.Tasks tasks, int bucketSize,
+                                      long start, long stop, long now) {
+        // Close off open ends at the first logged time and the end of today
+        if(start == Long.MIN_VALUE) start = timeline.size() > 0 ? timeline.getStart(0) : Util.getTodayMs();
+        if(stop == Long.MAX_VALUE) stop = Util.getStartOfDayMs(Util.getTodayEpochDay() + 1);
+        if(stop <= start) stop = start + 1;
+
+        // Bucket boundaries as epoch days and the times they start at. The last boundary closes the last bucket.
+        long lastDay = Util.toEpochDay(stop - 1);
+        ArrayList<Long> days = new ArrayList<Long>();
+        for(long day = getBucketStart(bucketSize, Util.toEpochDay(start)); day <= lastDay;
+                day = getNextBucket(bucketSize, day)) {
+            days.add(day);
+        }
+
+        int buckets = days.size();
+        long[] bucketDays = new long[buckets];
+        long[] bounds = new long[buckets + 1];
+        for(int b = 0; b < buckets; b++) {
+            bucketDays[b] = days.get(b);
+            bounds[b] = Util.getStartOfDayMs(bucketDays[b]);
+        }
+        bounds[buckets] = Util.getStartOfDayMs(getNextBucket(bucketSize, bucketDays[buckets - 1]));
+
+        // Tasks in the order they're first seen, and their rows of the matrix
+        HashMap<Long, Integer> taskIndexes = new HashMap<Long, Integer>();
+        ArrayList<String> names = new ArrayList<String>();
+        long[] matrix = new long[16 * buckets];
+        boolean running = false;
+
+        for(int i : timeline.findOverlaps(start, stop)) {
+            long rangeStop = timeline.getStop(i);
+            long s = Math.max(start, timeline.getStart(i));
+            long e = Math.min(stop, rangeStop == -1 ? now : rangeStop);
+            if(e <= s) continue;
+            if(rangeStop == -1) running = true;
+
+            long taskId = timeline.getTaskId(i);
+            Integer index = taskIndexes.get(taskId);
+            if(index == null) {
+                index = names.size();
+                taskIndexes.put(taskId, index);
+                names.add(tasks.getName(taskId));
+                if((index + 1) * buckets > matrix.length) {
+                    matrix = Arrays.copyOf(matrix, matrix.length * 2);
+                }
+            }
+
+            // Spread the clipped range over the buckets it touches
+            int b = Arrays.binarySearch(bounds, s);
+            if(b < 0) b = -b - 2;
+            int row = index * buckets;
+            while(s < e) {
+                long end = Math.min(e, bounds[b + 1]);
+                matrix[row + b] += end - s;
+                s = end;
+                b++;
+            }
+        }
+
+        // Order tasks by name
+        final String[] unsorted = names.toArray(new String[names.size()]);
+        Integer[] order = new Integer[unsorted.length];
+        for(int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return String.CASE_INSENSITIVE_ORDER.compare(unsorted[a], unsorted[b]);
+            }
+        });
+
+        String[] taskNames = new String[order.length];
+        long[] durations = new long[order.length * buckets];
+        for(int i = 0; i < order.length; i++) {
+            taskNames[i] = unsorted[order[i]];
+            System.arraycopy(matrix, order[i] * buckets, durations, i * buckets, buckets);
+        }
+
+        return new Report(bucketSize, start, stop, bucketDays, taskNames, durations, timeline.version, tasks, now,
+                running);
+    }
+
+    private static long getBucketStart(int bucketSize, long day) {
+        switch(bucketSize) {
+        case BUCKET_WEEK:  return Util.getStartOfWeek(day);
+        case BUCKET_MONTH: return Util.getStartOfMonth(day);
+        default:           return day;
+        }
+    }
+
+    private static long getNextBucket(int bucketSize, long day) {
+        switch(bucketSize) {
+        case BUCKET_WEEK:  return day + 7;
+        // No month is longer than 31 days, so this always lands in the next month
+        case BUCKET_MONTH: return Util.getStartOfMonth(day + 31);
+        default:           return day + 1;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.robertsebastian.timelogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// One message between SyncEngine and the sync server: a client's changes, a request for the server's, or the
+// server's reply. Rows are named by their gid on every device. The wire form is gzipped, and time ranges pack
+// small before compression: starts are deltas from the range before, stops are lengths, and the task gids ranges
+// refer to are sent once per batch and then by index.
+public class SyncBatch {
+    public static final int PUSH  = 1;  // Client changes after the last one the server acknowledged
+    public static final int PULL  = 2;  // Request for the changes other clients made after the cursor
+    public static final int REPLY = 3;  // Server acknowledgement, or changes and the cursor to ask from next
+
+    public static final int TASK = 0;
+    public static final int TIME = 1;
+
+    private static final int MAGIC = 0x544c5331;  // "TLS1"
+
+    // Bits in the flags byte leading each change
+    private static final int FLAG_TIME    = 1;
+    private static final int FLAG_DELETED = 2;
+    private static final int FLAG_OPEN    = 4;
+    private static final int FLAG_HIDDEN  = 8;
+
+    // Latest version of a row, or a tombstone (deleted) with only the table and gid
+    public static class Change {
+        public int table;
+        public String gid;
+        public boolean deleted;
+
+        // Tasks
+        public String name;
+        public String description;
+        public long timeAdded;
+        public long lastUsed;
+        public boolean hidden;
+
+        // Time ranges: the task's gid, or "" if the task is gone, and a stop of -1 while running
+        public String taskGid;
+        public long start;
+        public long stop;
+    }
+
+    public final int kind;
+    public final long clientId;
+    public final long cursor;
+    public final boolean more;
+    public final ArrayList<Change> changes;
+
+    public SyncBatch(int kind, long clientId, long cursor, boolean more, ArrayList<Change> changes) {
+        this.kind = kind;
+        this.clientId = clientId;
+        this.cursor = cursor;
+        this.more = more;
+        this.changes = changes;
+    }
+
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(bytes)));
+
+        out.writeInt(MAGIC);
+        out.writeByte(kind);
+        out.writeLong(clientId);
+        out.writeLong(cursor);
+        out.writeBoolean(more);
+        writeVarLong(out, changes.size());
+
+        HashMap<String, Integer> taskGids = new HashMap<String, Integer>();
+        long prevStart = 0;
+        for(Change c : changes) {
+            int flags = (c.table == TIME ? FLAG_TIME : 0) | (c.deleted ? FLAG_DELETED : 0);
+            if(!c.deleted && c.table == TIME && c.stop == -1) flags |= FLAG_OPEN;
+            if(!c.deleted && c.table == TASK && c.hidden) flags |= FLAG_HIDDEN;
+            out.writeByte(flags);
+            out.writeUTF(c.gid);
+            if(c.deleted) continue;
+
+            if(c.table == TASK) {
+                out.writeUTF(c.name);
+                out.writeUTF(c.description);
+                writeVarLong(out, zigzag(c.timeAdded));
+                writeVarLong(out, zigzag(c.lastUsed - c.timeAdded));
+                continue;
+            }
+
+            Integer index = taskGids.get(c.taskGid);
+            if(index == null) {
+                writeVarLong(out, taskGids.size());
+                out.writeUTF(c.taskGid);
+                taskGids.put(c.taskGid, taskGids.size());
+            } else {
+                writeVarLong(out, index);
+            }
+            writeVarLong(out, zigzag(c.start - prevStart));
+            if(c.stop != -1) writeVarLong(out, zigzag(c.stop - c.start));
+            prevStart = c.start;
+        }
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public static SyncBatch decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(data))));
+        try {
+            if(in.readInt() != MAGIC) throw new IOException("Not a sync batch");
+
+            int kind = in.readByte();
+            long clientId = in.readLong();
+            long cursor = in.readLong();
+            boolean more = in.readBoolean();
+            int count = (int)readVarLong(in);
+
+            ArrayList<Change> changes = new ArrayList<Change>(count);
+            ArrayList<String> taskGids = new ArrayList<String>();
+            long prevStart = 0;
+            for(int i = 0; i < count; i++) {
+                int flags = in.readByte();
+                Change c = new Change();
+                c.table = (flags & FLAG_TIME) != 0 ? TIME : TASK;
+                c.gid = in.readUTF();
+                c.deleted = (flags & FLAG_DELETED) != 0;
+                changes.add(c);
+                if(c.deleted) continue;
+
+                if(c.table == TASK) {
+                    c.name = in.readUTF();
+                    c.description = in.readUTF();
+                    c.timeAdded = unzigzag(readVarLong(in));
+                    c.lastUsed = c.timeAdded + unzigzag(readVarLong(in));
+                    c.hidden = (flags & FLAG_HIDDEN) != 0;
+                    continue;
+                }
+
+                int index = (int)readVarLong(in);
+                if(index == taskGids.size()) taskGids.add(in.readUTF());
+                if(index > taskGids.size()) throw new IOException("Bad task gid index " + index);
+                c.taskGid = taskGids.get(index);
+                c.start = prevStart + unzigzag(readVarLong(in));
+                c.stop = (flags & FLAG_OPEN) != 0 ? -1 : c.start + unzigzag(readVarLong(in));
+                prevStart = c.start;
+            }
+
+            return new SyncBatch(kind, clientId, cursor, more, changes);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Add a live row to a digest of all rows, taken in table then gid order. The client and server compute it the
+    // same way, so equal digests mean they hold the same rows.
+    public static void addToDigest(MessageDigest digest, Change c) {
+        StringBuilder str = new StringBuilder();
+        str.append(c.table).append('\0').append(c.gid).append('\0');
+        if(c.table == TASK) {
+            str.append(c.name).append('\0').append(c.description).append('\0').append(c.timeAdded).append('\0')
+                    .append(c.lastUsed).append('\0').append(c.hidden ? 1 : 0);
+        } else {
+            str.append(c.taskGid).append('\0').append(c.start).append('\0').append(c.stop);
+        }
+        str.append('\n');
+
+        try {
+            digest.update(str.toString().getBytes("UTF-8"));
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder str = new StringBuilder();
+        for(byte b : bytes) str.append(String.format(Locale.US, "%02x", b & 0xff));
+        return str.toString();
+    }
+
+    // Small values of either sign in few bytes: zigzag maps them to small unsigned values, written 7 bits a byte
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while((v & ~0x7fL) != 0) {
+            out.writeByte((int)(v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int)v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.readByte();
+            v |= (long)(b & 0x7f) << shift;
+            if((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Bad varint");
+    }
+}
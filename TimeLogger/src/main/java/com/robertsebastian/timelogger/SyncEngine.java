@@ -0,0 +1,319 @@
+package com.robertsebastian.timelogger;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+// Delta sync of the tasks and times tables with a server. Triggers stamp every local change into the changes log
+// (see TimeProvider.DbHelper.createChangeLog()), so a sync first pushes only the log entries after the last one
+// the server acknowledged, a batch per exchange, then pulls what other clients changed since its server cursor
+// and applies it in one transaction. A row changed here since the push keeps the local version; it goes out with
+// the next sync. A running range (stop = -1) stays local until it's closed, which logs it again: on another device
+// it would be open for a task that isn't selected there, and that device's selection triggers would close or drop
+// it on their own clock. Runs on the provider's database, see TimeProvider.METHOD_SYNC.
+public class SyncEngine {
+    private static final int PUSH_BATCH = 5000;
+
+    // Each log entry after a sequence number with its row as it is now. A row that's gone by now is sent as a
+    // tombstone, whatever the entry says.
+    private static final String PUSH_QUERY =
+            "SELECT c.seq, c.tbl, c.gid, c.deleted OR ifnull(k._id, r._id) IS NULL, "
+            + "k.name, k.description, k.time_added, k.last_used, k.hidden, ifnull(rk.gid, ''), r.start, r.stop "
+            + "FROM changes c "
+            + "LEFT JOIN tasks k ON c.tbl = " + SyncBatch.TASK + " AND k.gid = c.gid "
+            + "LEFT JOIN times r ON c.tbl = " + SyncBatch.TIME + " AND r.gid = c.gid "
+            + "LEFT JOIN tasks rk ON rk._id = r.task_id "
+            + "WHERE c.seq > ? ORDER BY c.seq LIMIT " + PUSH_BATCH;
+
+    private final SQLiteDatabase mDb;
+    private final SyncTransport mTransport;
+
+    private int mPushed = 0;
+    private int mPulled = 0;
+    private long mBytesSent = 0;
+    private long mBytesReceived = 0;
+
+    public SyncEngine(SQLiteDatabase db, SyncTransport transport) {
+        mDb = db;
+        mTransport = transport;
+    }
+
+    public int getPushed() {
+        return mPushed;
+    }
+
+    public int getPulled() {
+        return mPulled;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public void sync() throws IOException {
+        push();
+        pull();
+    }
+
+    private SyncBatch exchange(SyncBatch request) throws IOException {
+        byte[] data = request.encode();
+        mBytesSent += data.length;
+
+        data = mTransport.exchange(data);
+        mBytesReceived += data.length;
+
+        SyncBatch reply = SyncBatch.decode(data);
+        if(reply.kind != SyncBatch.REPLY) throw new IOException("Unexpected sync batch kind " + reply.kind);
+        return reply;
+    }
+
+    // Send the log after the acknowledged entry, moving the acknowledgement up after each batch so an interrupted
+    // sync picks up where it stopped
+    private void push() throws IOException {
+        long clientId = getSetting(TimeProvider.SETTING_SYNC_CLIENT);
+        long pushed = getSetting(TimeProvider.SETTING_SYNC_PUSHED);
+
+        while(true) {
+            ArrayList<SyncBatch.Change> changes = new ArrayList<SyncBatch.Change>();
+            long last = pushed;
+
+            Cursor c = mDb.rawQuery(PUSH_QUERY, new String[] {Long.toString(pushed)});
+            if(c == null) return;
+            try {
+                while(c.moveToNext()) {
+                    last = c.getLong(0);
+                    SyncBatch.Change change = readChange(c);
+                    if(!isRunning(change)) changes.add(change);
+                }
+            } finally {
+                c.close();
+            }
+            if(last == pushed) break;
+
+            if(!changes.isEmpty()) exchange(new SyncBatch(SyncBatch.PUSH, clientId, 0, false, changes));
+            setSetting(TimeProvider.SETTING_SYNC_PUSHED, last);
+            pushed = last;
+            mPushed += changes.size();
+        }
+
+        // The server has the tombstones now
+        mDb.delete("changes", "seq <= ? AND deleted = 1", new String[] {Long.toString(pushed)});
+    }
+
+    private static SyncBatch.Change readChange(Cursor c) {
+        SyncBatch.Change change = new SyncBatch.Change();
+        change.table = c.getInt(1);
+        change.gid = c.getString(2);
+        change.deleted = c.getInt(3) != 0;
+        if(change.deleted) return change;
+
+        if(change.table == SyncBatch.TASK) {
+            change.name = c.getString(4);
+            change.description = c.getString(5);
+            change.timeAdded = c.getLong(6);
+            change.lastUsed = c.getLong(7);
+            change.hidden = c.getInt(8) != 0;
+        } else {
+            change.taskGid = c.getString(9);
+            change.start = c.getLong(10);
+            change.stop = c.getLong(11);
+        }
+        return change;
+    }
+
+    private static boolean isRunning(SyncBatch.Change change) {
+        return change.table == SyncBatch.TIME && !change.deleted && change.stop == -1;
+    }
+
+    // Fetch everything after the server cursor before applying any of it: a range can arrive ahead of a new task
+    // it refers to
+    private void pull() throws IOException {
+        long clientId = getSetting(TimeProvider.SETTING_SYNC_CLIENT);
+        long cursor = getSetting(TimeProvider.SETTING_SYNC_PULLED);
+
+        ArrayList<SyncBatch.Change> changes = new ArrayList<SyncBatch.Change>();
+        boolean more = true;
+        while(more) {
+            SyncBatch reply = exchange(
+                    new SyncBatch(SyncBatch.PULL, clientId, cursor, false, new ArrayList<SyncBatch.Change>()));
+            changes.addAll(reply.changes);
+            cursor = reply.cursor;
+            more = reply.more;
+        }
+
+        apply(changes, cursor);
+    }
+
+    // Write pulled rows, tasks first so ranges can find theirs, without logging them as local changes. Rows are
+    // matched by gid; a range whose task isn't here gets task ID -1, like a range whose task was deleted.
+    private void apply(ArrayList<SyncBatch.Change> changes, long cursor) {
+        mDb.beginTransaction();
+        try {
+            setSetting(TimeProvider.SETTING_SYNC_APPLYING, 1);
+            long pushed = getSetting(TimeProvider.SETTING_SYNC_PUSHED);
+
+            SQLiteStatement pending = mDb.compileStatement(
+                    "SELECT ifnull(max(seq), 0) FROM changes WHERE tbl = ? AND gid = ?");
+            SQLiteStatement taskId = mDb.compileStatement("SELECT ifnull(max(_id), -1) FROM tasks WHERE gid = ?");
+            SQLiteStatement timeId = mDb.compileStatement("SELECT ifnull(max(_id), -1) FROM times WHERE gid = ?");
+            SQLiteStatement insertTask = mDb.compileStatement("INSERT INTO tasks "
+                    + "(name, description, time_added, last_used, hidden, gid) VALUES (?, ?, ?, ?, ?, ?)");
+            SQLiteStatement updateTask = mDb.compileStatement("UPDATE tasks "
+                    + "SET name = ?, description = ?, time_added = ?, last_used = ?, hidden = ? WHERE _id = ?");
+            SQLiteStatement deleteTask = mDb.compileStatement("DELETE FROM tasks WHERE gid = ?");
+            SQLiteStatement insertTime = mDb.compileStatement(
+                    "INSERT INTO times (task_id, start, stop, gid) VALUES (?, ?, ?, ?)");
+            SQLiteStatement updateTime = mDb.compileStatement(
+                    "UPDATE times SET task_id = ?, start = ?, stop = ? WHERE _id = ?");
+            SQLiteStatement deleteTime = mDb.compileStatement("DELETE FROM times WHERE gid = ?");
+
+            for(int table = SyncBatch.TASK; table <= SyncBatch.TIME; table++) {
+                for(SyncBatch.Change c : changes) {
+                    if(c.table != table) continue;
+
+                    pending.bindLong(1, c.table);
+                    pending.bindString(2, c.gid);
+                    if(pending.simpleQueryForLong() > pushed) continue;
+
+                    if(c.table == SyncBatch.TASK) {
+                        applyTask(c, taskId, insertTask, updateTask, deleteTask);
+                    } else {
+                        applyTime(c, taskId, timeId, insertTime, updateTime, deleteTime);
+                    }
+                    mPulled++;
+                }
+            }
+
+            pending.close();
+            taskId.close();
+            timeId.close();
+            insertTask.close();
+            updateTask.close();
+            deleteTask.close();
+            insertTime.close();
+            updateTime.close();
+            deleteTime.close();
+
+            setSetting(TimeProvider.SETTING_SYNC_PULLED, cursor);
+            setSetting(TimeProvider.SETTING_SYNC_APPLYING, 0);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private static void applyTask(SyncBatch.Change c, SQLiteStatement taskId, SQLiteStatement insert,
+                                  SQLiteStatement update, SQLiteStatement delete) {
+        if(c.deleted) {
+            delete.bindString(1, c.gid);
+            delete.executeUpdateDelete();
+            return;
+        }
+
+        taskId.bindString(1, c.gid);
+        long id = taskId.simpleQueryForLong();
+
+        SQLiteStatement statement = id == -1 ? insert : update;
+        statement.bindString(1, c.name);
+        statement.bindString(2, c.description);
+        statement.bindLong(3, c.timeAdded);
+        statement.bindLong(4, c.lastUsed);
+        statement.bindLong(5, c.hidden ? 1 : 0);
+        if(id == -1) {
+            statement.bindString(6, c.gid);
+            statement.executeInsert();
+        } else {
+            statement.bindLong(6, id);
+            statement.executeUpdateDelete();
+        }
+    }
+
+    private static void applyTime(SyncBatch.Change c, SQLiteStatement taskId, SQLiteStatement timeId,
+                                  SQLiteStatement insert, SQLiteStatement update, SQLiteStatement delete) {
+        if(c.deleted) {
+            delete.bindString(1, c.gid);
+            delete.executeUpdateDelete();
+            return;
+        }
+
+        timeId.bindString(1, c.gid);
+        long id = timeId.simpleQueryForLong();
+        taskId.bindString(1, c.taskGid);
+
+        SQLiteStatement statement = id == -1 ? insert : update;
+        statement.bindLong(1, taskId.simpleQueryForLong());
+        statement.bindLong(2, c.start);
+        statement.bindLong(3, c.stop);
+        if(id == -1) {
+            statement.bindString(4, c.gid);
+            statement.executeInsert();
+        } else {
+            statement.bindLong(4, id);
+            statement.executeUpdateDelete();
+        }
+    }
+
+    // Digest of the live rows, equal to the server's once the two have converged, see SyncBatch.addToDigest().
+    // Running ranges aren't synced yet, so they're left out.
+    public String digest() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+            Cursor c = mDb.rawQuery("SELECT gid, name, description, time_added, last_used, hidden "
+                    + "FROM tasks ORDER BY gid", null);
+            try {
+                SyncBatch.Change change = new SyncBatch.Change();
+                change.table = SyncBatch.TASK;
+                while(c.moveToNext()) {
+                    change.gid = c.getString(0);
+                    change.name = c.getString(1);
+                    change.description = c.getString(2);
+                    change.timeAdded = c.getLong(3);
+                    change.lastUsed = c.getLong(4);
+                    change.hidden = c.getInt(5) != 0;
+                    SyncBatch.addToDigest(digest, change);
+                }
+            } finally {
+                c.close();
+            }
+
+            c = mDb.rawQuery("SELECT r.gid, ifnull(k.gid, ''), r.start, r.stop "
+                    + "FROM times r LEFT JOIN tasks k ON k._id = r.task_id WHERE r.stop != -1 ORDER BY r.gid", null);
+            try {
+                SyncBatch.Change change = new SyncBatch.Change();
+                change.table = SyncBatch.TIME;
+                while(c.moveToNext()) {
+                    change.gid = c.getString(0);
+                    change.taskGid = c.getString(1);
+                    change.start = c.getLong(2);
+                    change.stop = c.getLong(3);
+                    SyncBatch.addToDigest(digest, change);
+                }
+            } finally {
+                c.close();
+            }
+
+            return SyncBatch.toHex(digest.digest());
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private long getSetting(String name) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT value FROM settings WHERE name = ?", new String[] {name});
+    }
+
+    private void setSetting(String name, long value) {
+        mDb.execSQL("UPDATE settings SET value = ? WHERE name = ?", new Object[] {value, name});
+    }
+}
@@ -0,0 +1,8 @@
+package com.robertsebastian.timelogger;
+
+import java.io.IOException;
+
+// Carries an encoded SyncBatch to the sync server and returns its encoded reply
+public interface SyncTransport {
+    byte[] exchange(byte[] request) throws IOException;
+}
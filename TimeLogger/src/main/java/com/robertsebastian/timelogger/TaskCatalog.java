@@ -0,0 +1,257 @@
+package com.robertsebastian.timelogger;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Every task's name, description and hidden flag, loaded once per process and shared by the screens that show a
+// task next to its time ranges or pick one, instead of each joining or querying the tasks table again. Reloaded when
+// the provider reports a change to the tasks themselves; changes confined to time ranges are skipped.
+public class TaskCatalog {
+    public static final String TAG = TaskCatalog.class.getSimpleName();
+
+    static final String[] PROJECTION = {"_id", "name", "description", "hidden"};
+
+    public static class Task {
+        public final long id;
+        public final String name;
+        public final String description;
+        public final boolean hidden;
+        public final int position;  // In the visible tasks, -1 if hidden
+
+        Task(long id, String name, String description, boolean hidden, int position) {
+            this.id          = id;
+            this.name        = name;
+            this.description = description;
+            this.hidden      = hidden;
+            this.position    = position;
+        }
+    }
+
+    // One load of the catalog, never changed once built. Tasks are found by binary search over a sorted array of
+    // IDs, and the visible tasks are listed by name the way the task pickers show them.
+    public static class Tasks {
+        private final long[] mIds;
+        private final Task[] mById;
+        private final Task[] mVisible;
+        private final int mChanges;  // Change count the load started at
+
+        Tasks(long[] ids, Task[] byId, Task[] visible, int changes) {
+            mIds = ids;
+            mById = byId;
+            mVisible = visible;
+            mChanges = changes;
+        }
+
+        // The task with an ID, or null if there's none
+        public Task get(long id) {
+            int i = Arrays.binarySearch(mIds, id);
+            return i >= 0 ? mById[i] : null;
+        }
+
+        // Name of a task, empty if it's unknown
+        public String getName(long id) {
+            Task task = get(id);
+            return task != null ? task.name : "";
+        }
+
+        // Position of a task among the visible tasks, -1 if it's hidden or unknown
+        public int getPosition(long id) {
+            Task task = get(id);
+            return task != null ? task.position : -1;
+        }
+
+        public int getVisibleCount() {
+            return mVisible.length;
+        }
+
+        public Task getVisible(int position) {
+            return mVisible[position];
+        }
+    }
+
+    public interface OnChangeListener {
+        public void onCatalogChanged(Tasks tasks);
+    }
+
+    private static final Comparator<Task> BY_NAME = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            return a.name.compareToIgnoreCase(b.name);
+        }
+    };
+
+    private static TaskCatalog sInstance = null;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Bumped by every change notification that could touch the tasks. Loads remember the count they started at,
+    // so a load that raced with a change is known to be stale.
+    private final AtomicInteger mChanges = new AtomicInteger();
+
+    private volatile Tasks mTasks = null;
+    private final Object mLoadLock = new Object();
+
+    // Listeners and the background reload, on the main thread only
+    private final ArrayList<OnChangeListener> mListeners = new ArrayList<OnChangeListener>();
+    private ReloadTask mReload = null;
+
+    static private class ReloadTask extends AsyncTask<Void, Void, Tasks> {
+        private final TaskCatalog mCatalog;
+
+        ReloadTask(TaskCatalog catalog) {
+            mCatalog = catalog;
+        }
+
+        @Override
+        protected Tasks doInBackground(Void... params) {
+            return mCatalog.getTasks();
+        }
+
+        @Override
+        protected void onPostExecute(Tasks tasks) {
+            mCatalog.onReloaded(tasks);
+        }
+    }
+
+    private final Runnable mReloadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reload();
+        }
+    };
+
+    public static synchronized TaskCatalog get(Context context) {
+        if(sInstance == null) sInstance = new TaskCatalog(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private TaskCatalog(Context context) {
+        mContext = context;
+
+        // Notifications are counted as soon as they arrive rather than waiting on the main thread, so a loader
+        // that reloads for the same change sees the catalog as stale
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                if(!isTaskChange(uri)) return;
+
+                mChanges.incrementAndGet();
+                mHandler.post(mReloadRunnable);
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(TimeProvider.TASKS_URI, true, observer);
+
+        mHandler.post(mReloadRunnable);
+    }
+
+    // Time range changes reach the task list with the days they touched (see TimeProvider.withDays()), and
+    // starting or stopping a task comes on TimeProvider.TASK_SELECTION_URI. Other changes to the task rows come
+    // on the tasks URIs without days, as they show on every day.
+    private static boolean isTaskChange(Uri uri) {
+        return uri == null || (!uri.getPathSegments().contains("days") && !TimeProvider.TASK_SELECTION_URI.equals(uri));
+    }
+
+    // The catalog as last loaded without waiting, or null if it hasn't been yet. May be behind a change that's
+    // still being loaded; listeners hear about it when it is.
+    public Tasks peekTasks() {
+        return mTasks;
+    }
+
+    // The catalog up to date with every change notified so far, loading it on the calling thread if it's behind.
+    // Not for the main thread.
+    public Tasks getTasks() {
+        Tasks tasks = mTasks;
+        if(tasks != null && tasks.mChanges == mChanges.get()) return tasks;
+
+        synchronized(mLoadLock) {
+            // Another thread may have caught up while this one waited
+            tasks = mTasks;
+            int changes = mChanges.get();
+            if(tasks != null && tasks.mChanges == changes) return tasks;
+
+            tasks = load(changes);
+            if(tasks != null) mTasks = tasks;
+            return tasks != null ? tasks : mTasks;
+        }
+    }
+
+    public void addListener(OnChangeListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(OnChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    // Load in the background and let the listeners know, unless a load is already running. That one will pick up
+    // anything that changed since it started on its next round.
+    private void reload() {
+        if(mReload != null) return;
+
+        mReload = new ReloadTask(this);
+        mReload.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void onReloaded(Tasks tasks) {
+        mReload = null;
+
+        if(tasks != null) {
+            for(OnChangeListener listener : new ArrayList<OnChangeListener>(mListeners)) {
+                listener.onCatalogChanged(tasks);
+            }
+        }
+
+        // Changed again while loading
+        if(tasks == null || tasks.mChanges != mChanges.get()) reload();
+    }
+
+    private Tasks load(int changes) {
+        Cursor c = mContext.getContentResolver().query(TimeProvider.TASKS_URI, PROJECTION, null, null, "_id");
+        if(c == null) return null;
+
+        Task[] byId;
+        try {
+            byId = new Task[c.getCount()];
+            for(int i = 0; c.moveToPosition(i); i++) {
+                byId[i] = new Task(c.getLong(0), c.getString(1), c.getString(2), c.getInt(3) != 0, -1);
+            }
+        } finally {
+            c.close();
+        }
+
+        Task[] visible = new Task[byId.length];
+        int visibleCount = 0;
+        for(Task task : byId) {
+            if(!task.hidden) visible[visibleCount++] = task;
+        }
+        visible = Arrays.copyOf(visible, visibleCount);
+        Arrays.sort(visible, BY_NAME);
+
+        // Give each visible task its position
+        long[] ids = new long[byId.length];
+        for(int i = 0; i < byId.length; i++) ids[i] = byId[i].id;
+        for(int i = 0; i < visible.length; i++) {
+            Task task = visible[i];
+            visible[i] = new Task(task.id, task.name, task.description, false, i);
+            byId[Arrays.binarySearch(ids, task.id)] = visible[i];
+        }
+
+        return new Tasks(ids, byId, visible, changes);
+    }
+}
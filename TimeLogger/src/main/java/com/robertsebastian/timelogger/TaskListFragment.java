@@ -1,20 +1,27 @@
 package com.robertsebastian.timelogger;
 
+import android.app.Activity;
 import android.app.ListFragment;
 import android.app.LoaderManager;
+import android.app.ProgressDialog;
 import android.content.AsyncQueryHandler;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.graphics.Paint;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -22,23 +29,37 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.AdapterView;
 import android.widget.Checkable;
 import android.widget.CursorAdapter;
 import android.widget.ListView;
+import android.widget.SearchView;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.text.TextUtils;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
 public class TaskListFragment extends ListFragment implements
         LoaderManager.LoaderCallbacks<Cursor>,
         SimpleCursorAdapter.ViewBinder,
-        DateTimePickerDialogFragment.OnDateTimePickedListener
+        DateTimePickerDialogFragment.OnDateTimePickedListener,
+        SearchView.OnQueryTextListener,
+        LiveClock.OnTickListener
 {
     public static final String TAG = TaskListFragment.class.getSimpleName();
 
     private static final int TASKS_QUERY_ID = 1;
 
+    private static final int REQUEST_IMPORT_CSV = 1;
+
     private static final int DIALOG_ACTION_PICK_SINGLE_DAY = 0;
     private static final int DIALOG_ACTION_PICK_FIRST_DAY = 1;
     private static final int DIALOG_ACTION_PICK_LAST_DAY = 2;
@@ -46,6 +67,11 @@ public class TaskListFragment extends ListFragment implements
     private static final long ONE_DAY = 24 * 3600 * 1000; // 24 hours in milliseconds
     private static final long ONE_WEEK = ONE_DAY * 7;
 
+    private static final long NO_PENDING_SELECTION = -2;
+
+    // Pause in typing before a search runs
+    private static final long SEARCH_DELAY = 300;
+
     // Restore data
     private long mStartRange   = Long.MIN_VALUE;
     private long mStopRange    = Long.MAX_VALUE;
@@ -58,28 +84,142 @@ public class TaskListFragment extends ListFragment implements
     private TextView mTotalDurationTextView;
     private TextView mDateTextView;
 
-    // Handler to periodically update duration counts
-    private Handler mHandler = new Handler();
-    private Runnable mUpdateRunnable = new Runnable() {
+    // Advances running durations on screen between loads
+    private LiveClock mLiveClock = new LiveClock(this);
+    private long mTotalDuration = 0;
+    private int mRunningCount = 0;
+
+    // Running CSV import and its progress, shown again if the activity is recreated while it runs
+    private ImportTask mImportTask = null;
+    private ProgressDialog mImportDialog = null;
+    private String mImportProgress = "";
+
+    // Selection shown ahead of the provider after a tap (-1 for none), until a reload agrees with it or every
+    // switch sent has finished
+    private long mPendingSelection = NO_PENDING_SELECTION;
+    private int mPendingSwitches = 0;
+    private long mSwitchTime = 0;
+
+    // Task search typed into the action bar. Each change restarts the loader once typing pauses, which cancels
+    // a load still running for the previous text.
+    private String mSearchQuery = "";
+    private final Handler mHandler = new Handler();
+    private final Runnable mSearchRunnable = new Runnable() {
         @Override
         public void run() {
-            if(getActivity() != null) {
-                getActivity().getContentResolver().notifyChange(TimeProvider.TASKS_URI, null);
-            }
-            mHandler.postDelayed(this, 3600);
+            if(getActivity() != null) getLoaderManager().restartLoader(TASKS_QUERY_ID, null, TaskListFragment.this);
         }
     };
 
+    // Switches the running task in the provider. Runs on the serial executor, so taps apply in order.
+    static private class SwitchTask extends AsyncTask<Long, Void, Boolean> {
+        private final TaskListFragment mFragment;
+        private final ContentResolver mResolver;
+
+        SwitchTask(TaskListFragment fragment, ContentResolver resolver) {
+            mFragment = fragment;
+            mResolver = resolver;
+        }
+
+        @Override
+        protected Boolean doInBackground(Long... taskIds) {
+            try {
+                mResolver.call(TimeProvider.TASKS_URI, TimeProvider.METHOD_SWITCH_TASK,
+                        Long.toString(taskIds[0]), null);
+                return true;
+            } catch(RuntimeException e) {
+                Log.e(TAG, "Failed to switch to task " + taskIds[0], e);
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean successful) {
+            mFragment.onSwitchFinished(successful);
+        }
+    }
+
+    // Imports a CSV file through the in-process provider, reporting rows imported and the rate
+    static private class ImportTask extends AsyncTask<Uri, Long, CsvImporter> {
+        private final TaskListFragment mFragment;
+        private final ContentResolver mResolver;
+        private String mError = null;
+
+        ImportTask(TaskListFragment fragment, ContentResolver resolver) {
+            mFragment = fragment;
+            mResolver = resolver;
+        }
+
+        @Override
+        protected CsvImporter doInBackground(Uri... uris) {
+            ContentProviderClient client = mResolver.acquireContentProviderClient(TimeProvider.AUTHORITY);
+            if(client == null) return null;
+
+            Reader in = null;
+            try {
+                TimeProvider provider = (TimeProvider)client.getLocalContentProvider();
+                InputStream stream = mResolver.openInputStream(uris[0]);
+                if(provider == null || stream == null) throw new IOException("Can't open " + uris[0]);
+
+                in = new InputStreamReader(stream, Charset.forName("UTF-8"));
+                return provider.importCsv(in, new CsvImporter.ProgressListener() {
+                    @Override
+                    public void onProgress(long imported, long skipped, long rowsPerSecond) {
+                        publishProgress(imported, skipped, rowsPerSecond);
+                    }
+                });
+            } catch(IOException e) {
+                Log.e(TAG, "CSV import failed", e);
+                mError = e.getMessage();
+                return null;
+            } catch(SQLException e) {
+                // A full disk or a locked database, chunks committed before it stay
+                Log.e(TAG, "CSV import failed", e);
+                mError = e.getMessage();
+                return null;
+            } finally {
+                if(in != null) {
+                    try {
+                        in.close();
+                    } catch(IOException e) {
+                        Log.w(TAG, "Failed to close import", e);
+                    }
+                }
+                client.release();
+            }
+        }
+
+        private static String formatProgress(long imported, long skipped, long rowsPerSecond) {
+            return String.format(Locale.US, "%d rows imported, %d skipped (%d rows/s)",
+                    imported, skipped, rowsPerSecond);
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            mFragment.showImportProgress(formatProgress(values[0], values[1], values[2]));
+        }
+
+        @Override
+        protected void onPostExecute(CsvImporter importer) {
+            if(importer == null) {
+                mFragment.onImportFinished("Import failed: " + mError);
+            } else {
+                mFragment.onImportFinished(String.format(Locale.US, "%d rows imported, %d skipped, %d new tasks",
+                        importer.getImported(), importer.getSkipped(), importer.getTasksCreated()));
+            }
+        }
+    }
+
     @Override
     public void onResume() {
         super.onResume();
-        mHandler.postDelayed(mUpdateRunnable, 0);
+        mLiveClock.setVisible(true);
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        mHandler.removeCallbacks(mUpdateRunnable);
+        mLiveClock.setVisible(false);
     }
 
     @Override
@@ -90,7 +230,7 @@ public class TaskListFragment extends ListFragment implements
 		setRetainInstance(true);
 		
 		// Default to "today" view
-        long today = Util.getToday().getTimeInMillis();
+        long today = Util.getTodayMs();
         mStartRange = today;
         mStopRange  = today + ONE_DAY;
         mDateText   = getString(R.string.date_range_today);	
@@ -132,6 +272,62 @@ public class TaskListFragment extends ListFragment implements
         
         // Initialize date range
         updateDateRange(mStartRange, mStopRange, mDateText);
+
+        if(mImportTask != null) showImportDialog();
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mHandler.removeCallbacks(mSearchRunnable);
+
+        if(mImportDialog != null) {
+            mImportDialog.dismiss();
+            mImportDialog = null;
+        }
+    }
+
+    // Ask for a CSV file to import
+    private void pickImportFile() {
+        Intent i = new Intent(Intent.ACTION_GET_CONTENT);
+        i.setType("text/*");
+        i.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(Intent.createChooser(i, getString(R.string.action_import_csv)), REQUEST_IMPORT_CSV);
+    }
+
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if(requestCode != REQUEST_IMPORT_CSV || resultCode != Activity.RESULT_OK || data == null) return;
+        if(data.getData() == null || mImportTask != null) return;
+
+        mImportProgress = "";
+        mImportTask = new ImportTask(this, getActivity().getContentResolver());
+        mImportTask.execute(data.getData());
+        showImportDialog();
+    }
+
+    private void showImportDialog() {
+        mImportDialog = new ProgressDialog(getActivity());
+        mImportDialog.setTitle(getString(R.string.import_title));
+        mImportDialog.setMessage(mImportProgress);
+        mImportDialog.setIndeterminate(true);
+        mImportDialog.setCancelable(false);
+        mImportDialog.show();
+    }
+
+    private void showImportProgress(String progress) {
+        mImportProgress = progress;
+        if(mImportDialog != null) mImportDialog.setMessage(progress);
+    }
+
+    private void onImportFinished(String result) {
+        mImportTask = null;
+
+        if(mImportDialog != null) {
+            mImportDialog.dismiss();
+            mImportDialog = null;
+        }
+        if(getActivity() != null) Toast.makeText(getActivity(), result, Toast.LENGTH_LONG).show();
     }
 
     // Create context menu for modifying a task
@@ -191,6 +387,37 @@ public class TaskListFragment extends ListFragment implements
 
         menu.findItem(R.id.show_hidden).setChecked(mShowHidden);
 		menu.findItem(R.id.only_recent).setChecked(mShowOnlyRecent);
+        menu.findItem(R.id.action_metrics).setVisible(BuildConfig.DEBUG);
+
+        // Bring back a search left open when the activity was recreated
+        MenuItem search = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView)search.getActionView();
+        searchView.setQueryHint(getString(R.string.search_tasks_hint));
+        if(mSearchQuery.length() > 0) {
+            search.expandActionView();
+            searchView.setQuery(mSearchQuery, false);
+        }
+        searchView.setOnQueryTextListener(this);
+    }
+
+    @Override
+    public boolean onQueryTextChange(String text) {
+        String query = text.trim();
+        if(query.equals(mSearchQuery)) return true;
+
+        mSearchQuery = query;
+        mHandler.removeCallbacks(mSearchRunnable);
+        mHandler.postDelayed(mSearchRunnable, SEARCH_DELAY);
+        return true;
+    }
+
+    // Don't wait for the delay once the search is submitted, and let the search view close the keyboard
+    @Override
+    public boolean onQueryTextSubmit(String text) {
+        mSearchQuery = text.trim();
+        mHandler.removeCallbacks(mSearchRunnable);
+        mSearchRunnable.run();
+        return false;
     }
 
     // Get the current cursor and move it to the position at which a context menu is open
@@ -209,27 +436,49 @@ public class TaskListFragment extends ListFragment implements
         return c;
     }
 
+    // Show the new selection straight away and switch tasks in the provider in the background
     @Override
-    public void onListItemClick(ListView list, View v, int i, long itemId) {
+    public void onListItemClick(final ListView list, View v, int i, long itemId) {
         if(getActivity() == null) return;
 
-        ContentValues values = new ContentValues();
+        Cursor c = (Cursor)list.getAdapter().getItem(i);
+        long taskId = c.getLong(c.getColumnIndex("_id"));
+
+        mPendingSelection = isSelected(c) ? -1 : taskId;
+        mPendingSwitches++;
+        mSwitchTime = SystemClock.uptimeMillis();
+
+        // Measure up to the first frame drawn with the new selection, and later up to the reload that confirms it
+        final long tapTime = mSwitchTime;
+        list.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                list.getViewTreeObserver().removeOnPreDrawListener(this);
+                ProviderMetrics.get().record("ui switch draw", SystemClock.uptimeMillis() - tapTime, 0);
+                return true;
+            }
+        });
+        ((SimpleCursorAdapter)getListAdapter()).notifyDataSetChanged();
 
-        // Deselect everything
-        values.put("selected", 0);
-        getActivity().getContentResolver().update(TimeProvider.TASKS_URI, values, "selected = 1", null);
+        new SwitchTask(this, getActivity().getContentResolver()).execute(taskId);
+    }
 
-        // Select new row
-        Cursor c = (Cursor)list.getAdapter().getItem(i);
-        long wasSelected = c.getLong(c.getColumnIndex("selected"));
-        if(wasSelected == 0) {
-            long taskId = c.getLong(c.getColumnIndex("_id"));
-            Uri thisTask = ContentUris.withAppendedId(TimeProvider.TASKS_URI, taskId);
+    private void onSwitchFinished(boolean successful) {
+        mPendingSwitches--;
 
-            values.put("selected", 1);
-            getActivity().getContentResolver().update(thisTask, values, null, null);
+        // Fall back to what the provider last reported
+        if(!successful && mPendingSwitches == 0 && mPendingSelection != NO_PENDING_SELECTION) {
+            mPendingSelection = NO_PENDING_SELECTION;
+            if(getListAdapter() != null) ((SimpleCursorAdapter)getListAdapter()).notifyDataSetChanged();
         }
+    }
 
+    // Whether a row is shown as selected, counting a tap the provider hasn't caught up with yet
+    private boolean isSelected(Cursor c) {
+        if(mPendingSelection != NO_PENDING_SELECTION) {
+            return c.getLong(c.getColumnIndex("_id")) == mPendingSelection;
+        }
+        return c.getInt(c.getColumnIndex("selected")) != 0;
     }
 
     // Update the selected date range and start new query for it
@@ -278,12 +527,7 @@ public class TaskListFragment extends ListFragment implements
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         if(id == TASKS_QUERY_ID) {
-            Uri uri = TimeProvider.TASKS_URI.buildUpon()
-                    .appendQueryParameter("start", Long.toString(mStartRange))
-                    .appendQueryParameter("stop", Long.toString(mStopRange))
-                    .build();
-					
-			long recentTime = Util.getToday().getTimeInMillis() - ONE_WEEK * 6;
+			long recentTime = Util.getTodayMs() - ONE_WEEK * 6;
 			String recentStr = Long.toString(recentTime);
 					
 			String filters = "(" + TextUtils.join(" and ", new String[] {
@@ -291,9 +535,8 @@ public class TaskListFragment extends ListFragment implements
 				mShowOnlyRecent ? "last_used >= " + recentStr : "1"
 			}) + ") or duration > 0";
 
-            return new CursorLoader(this.getActivity(), uri,
-                new String[] {"_id", "name", "description", "selected", "duration", "hidden"},
-                filters, null, mDateSort);
+            return new TaskListLoader(this.getActivity(), mStartRange, mStopRange, mSearchQuery, filters,
+                    mDateSort);
         }
         return null;
     }
@@ -302,13 +545,21 @@ public class TaskListFragment extends ListFragment implements
     public void onLoadFinished(Loader<Cursor> cursorLoader, Cursor cursor) {
         assert(getListAdapter() != null);
 
-        // Sum up duration column
-        cursor.moveToFirst();
-        int durationCol = cursor.getColumnIndex("duration");
-        long total = 0;
-        for(; !cursor.isAfterLast(); cursor.moveToNext()) {
-            total += cursor.getLong(durationCol); }
-        mTotalDurationTextView.setText(Util.formatDuration(total));
+        // Total duration and the running ranges to be advanced by the live clock, summed up by the provider
+        TaskListLoader.Totals totals = cursor != null ? ((TaskListLoader.TotalsCursor)cursor).getTotals() : null;
+        mTotalDuration = totals != null ? totals.total : 0;
+        mRunningCount = totals != null ? (int)totals.running : 0;
+        long selected = totals != null ? totals.selected : -1;
+
+        // Drop the optimistic selection once the provider has caught up with it
+        if(mPendingSelection != NO_PENDING_SELECTION && (selected == mPendingSelection || mPendingSwitches == 0)) {
+            mPendingSelection = NO_PENDING_SELECTION;
+            long latency = SystemClock.uptimeMillis() - mSwitchTime;
+            ProviderMetrics.get().record("ui switch load", latency, 0);
+            if(BuildConfig.DEBUG) Log.d(TAG, "Task switch reloaded in " + latency + "ms");
+        }
+        mLiveClock.reset(mRunningCount > 0);
+        mTotalDurationTextView.setText(Util.formatDuration(mTotalDuration));
 
         // Set time range
         mDateTextView.setText(mDateText);
@@ -325,7 +576,7 @@ public class TaskListFragment extends ListFragment implements
     @Override
     public boolean setViewValue(View view, Cursor c, int i) {
         if(view.getId() == R.id.selected) {
-            ((Checkable)view).setChecked(c.getInt(i) != 0);
+            ((Checkable)view).setChecked(isSelected(c));
             return true;
         } else if(view.getId() == R.id.name || view.getId() == R.id.description) {
             TextView text = (TextView)view;
@@ -338,12 +589,37 @@ public class TaskListFragment extends ListFragment implements
             }
             return true;
         } else if(view.getId() == R.id.duration) {
-            ((TextView)view).setText(Util.formatDuration(c.getLong(i)));
+            long running = c.getInt(c.getColumnIndex("running"));
+            ((TextView)view).setText(Util.formatDuration(c.getLong(i) + running * mLiveClock.getElapsed()));
             return true;
         }
         return false;
     }
 
+    // Advance the total and the durations of running tasks in the visible rows
+    @Override
+    public void onTick(long elapsed) {
+        if(getView() == null) return;
+
+        mTotalDurationTextView.setText(Util.formatDuration(mTotalDuration + mRunningCount * elapsed));
+
+        Cursor c = ((CursorAdapter)getListAdapter()).getCursor();
+        if(c == null) return;
+
+        ListView list = getListView();
+        int durationCol = c.getColumnIndex("duration");
+        int runningCol = c.getColumnIndex("running");
+        for(int i = 0; i < list.getChildCount(); i++) {
+            if(!c.moveToPosition(list.getFirstVisiblePosition() + i)) break;
+
+            int running = c.getInt(runningCol);
+            if(running == 0) continue;
+
+            TextView duration = (TextView)list.getChildAt(i).findViewById(R.id.duration);
+            duration.setText(Util.formatDuration(c.getLong(durationCol) + running * elapsed));
+        }
+    }
+
     private void showDatePickerDialog(int action, int titleResource, long initial, long min, long max) {
         assert(getFragmentManager() != null);
 
@@ -375,8 +651,8 @@ public class TaskListFragment extends ListFragment implements
     public boolean onOptionsItemSelected(MenuItem item) {
         assert(getFragmentManager() != null);
 
-        long today    = Util.getToday().getTimeInMillis();
-        long thisWeek = Util.getStartOfWeek().getTimeInMillis();
+        long today    = Util.getTodayMs();
+        long thisWeek = Util.getStartOfWeekMs();
 
         switch(item.getItemId()) {
         // Handle updates to date range
@@ -431,8 +707,19 @@ public class TaskListFragment extends ListFragment implements
             new TaskEditDialogFragment().show(getFragmentManager(), "create");
             return true;
 
+        case R.id.action_import_csv:
+            pickImportFile();
+            return true;
+
         case R.id.action_report:
-            startActivity(new Intent(getActivity(), ReportActivity.class));
+            Intent report = new Intent(getActivity(), ReportActivity.class);
+            report.putExtra("start", mStartRange);
+            report.putExtra("stop", mStopRange);
+            startActivity(report);
+            return true;
+
+        case R.id.action_metrics:
+            startActivity(new Intent(getActivity(), MetricsActivity.class));
             return true;
         }
         return false;
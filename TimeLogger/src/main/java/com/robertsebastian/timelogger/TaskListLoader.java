@@ -0,0 +1,109 @@
+package com.robertsebastian.timelogger;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.OperationCanceledException;
+
+// Loads the task list for a date range together with its totals from the provider, so the list can show the total
+// without walking every row of the cursor on the UI thread. Only changes touching the range reload it. With a
+// search query, only the tasks matching it are listed and summed up.
+public class TaskListLoader extends WindowCursorLoader {
+    static final String[] PROJECTION =
+            {"_id", "name", "description", "selected", "duration", "hidden", "running"};
+
+    // Give up on matching the totals to the list after this many writes land in between
+    private static final int MAX_ATTEMPTS = 3;
+
+    // Sums over the loaded tasks, as returned by TimeProvider.METHOD_GET_TOTALS
+    public static class Totals {
+        public final long total;
+        public final long running;       // Open ranges counted in the total
+        public final int count;
+        public final long selected;      // -1 if the selected task isn't in the list
+        public final long[] taskIds;     // Tasks with time logged in the range
+        public final long[] taskDurations;
+
+        Totals(Bundle b) {
+            total         = b.getLong("total");
+            running       = b.getLong("running");
+            count         = b.getInt("count");
+            selected      = b.getLong("selected", -1);
+            taskIds       = b.getLongArray("task_ids");
+            taskDurations = b.getLongArray("task_durations");
+        }
+    }
+
+    // The loaded cursor along with its totals
+    public static class TotalsCursor extends CursorWrapper {
+        private final Totals mTotals;
+
+        TotalsCursor(Cursor c, Totals totals) {
+            super(c);
+            mTotals = totals;
+        }
+
+        public Totals getTotals() {
+            return mTotals;
+        }
+    }
+
+    private final long mStart, mStop;
+    private final String mQuery;
+
+    // query is what's been typed into the search box, null or empty for all tasks
+    public TaskListLoader(Context context, long start, long stop, String query, String selection,
+                          String sortOrder) {
+        super(context, buildUri(start, stop, query), PROJECTION, selection, sortOrder, TimeProvider.TASKS_URI,
+                toDay(start), stop == Long.MAX_VALUE ? stop : toDay(stop - 1));
+        mStart = start;
+        mStop = stop;
+        mQuery = query;
+    }
+
+    private static Uri buildUri(long start, long stop, String query) {
+        boolean search = query != null && query.length() > 0;
+        Uri.Builder uri = (search ? TimeProvider.TASK_SEARCH_URI : TimeProvider.TASKS_URI).buildUpon()
+                .appendQueryParameter("start", Long.toString(start))
+                .appendQueryParameter("stop", Long.toString(stop));
+        if(search) uri.appendQueryParameter("q", query);
+        return uri.build();
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        Bundle args = new Bundle();
+        args.putLong("start", mStart);
+        args.putLong("stop", mStop);
+        args.putString("selection", getSelection());
+        args.putString("query", mQuery);
+
+        for(int attempt = 1; ; attempt++) {
+            long version = TimeProvider.getDataVersion();
+
+            Cursor c = super.loadInBackground();
+            if(c == null) return null;
+
+            // Superseded while the list was loading, e.g. by the next keystroke of a search
+            if(isCanceled()) {
+                c.close();
+                throw new OperationCanceledException();
+            }
+
+            Bundle totals = getContext().getContentResolver().call(getUri(), TimeProvider.METHOD_GET_TOTALS, null,
+                    args);
+            if(totals == null) {
+                c.close();
+                return null;
+            }
+
+            // A write between the two queries would leave the total out of step with the rows
+            if(version == TimeProvider.getDataVersion() || attempt == MAX_ATTEMPTS) {
+                return new TotalsCursor(c, new Totals(totals));
+            }
+            c.close();
+        }
+    }
+}
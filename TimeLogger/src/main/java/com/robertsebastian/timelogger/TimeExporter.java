@@ -0,0 +1,173 @@
+package com.robertsebastian.timelogger;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+// Streams time ranges into an export pipe as CSV or JSON. Rows are read in fixed size chunks by start time, so memory
+// use doesn't depend on the size of the export and the first bytes go out after the first chunk.
+//
+//   export/times.csv, export/times.json
+//     ?start=<ms>&stop=<ms>  only ranges starting in [start, stop)
+//     &task=<id>             only ranges of one task
+public class TimeExporter implements ContentProvider.PipeDataWriter<SQLiteDatabase> {
+    public static final String TAG = TimeExporter.class.getSimpleName();
+
+    public static final String CSV_TYPE  = "text/csv";
+    public static final String JSON_TYPE = "application/json";
+
+    private static final int CHUNK_SIZE = 500;
+
+    // Keyset over (start, _id), which the start indexes cover, so each chunk picks up where the last one ended
+    static final String CHUNK_QUERY =
+            "SELECT times._id, times.task_id, tasks.name, times.start, times.stop " +
+            "FROM times INNER JOIN tasks ON (times.task_id = tasks._id) " +
+            "WHERE times.start >= ? AND (times.start > ? OR times._id > ?) AND times.start < ? %s" +
+            "ORDER BY times.start, times._id LIMIT " + CHUNK_SIZE;
+
+    // MIME type for an export URI, or null if the file name isn't a known format
+    public static String getType(Uri uri) {
+        String name = uri.getLastPathSegment();
+        if(name == null) return null;
+
+        if(name.endsWith(".csv")) return CSV_TYPE;
+        if(name.endsWith(".json")) return JSON_TYPE;
+        return null;
+    }
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts,
+                                SQLiteDatabase db) {
+        boolean json = JSON_TYPE.equals(mimeType);
+
+        String start = uri.getQueryParameter("start");
+        String stop  = uri.getQueryParameter("stop");
+        String task  = uri.getQueryParameter("task");
+
+        String sql = String.format(CHUNK_QUERY, task != null ? "AND times.task_id = ? " : "");
+        String[] args = new String[task != null ? 5 : 4];
+        args[0] = Long.toString(start != null ? Long.parseLong(start) : Long.MIN_VALUE);
+        args[1] = args[0];
+        args[2] = Long.toString(-1);
+        args[3] = Long.toString(stop != null ? Long.parseLong(stop) : Long.MAX_VALUE);
+        if(task != null) args[4] = Long.toString(Long.parseLong(task));
+
+        if(BuildConfig.DEBUG) TimeProvider.warnFullScan(db, sql, args);
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new ParcelFileDescriptor.AutoCloseOutputStream(output), Charset.forName("UTF-8")));
+        try {
+            out.write(json ? "[" : "id,task_id,task,start,stop,duration\n");
+
+            long now = Util.getTimeMs();
+            boolean first = true;
+            while(true) {
+                Cursor c = db.rawQuery(sql, args);
+                if(c == null) break;
+
+                int count = 0;
+                try {
+                    while(c.moveToNext()) {
+                        long id     = c.getLong(0);
+                        long taskId = c.getLong(1);
+                        String name = c.getString(2);
+                        long s      = c.getLong(3);
+                        long e      = c.getLong(4);
+                        String duration = Util.formatDuration((e == -1 ? now : e) - s);
+
+                        if(json) {
+                            if(!first) out.write(',');
+                            out.write("\n{\"id\":" + id + ",\"task_id\":" + taskId + ",\"task\":");
+                            writeJsonString(out, name);
+                            out.write(",\"start\":" + s + ",\"stop\":" + e + ",\"duration\":" + duration + "}");
+                        } else {
+                            out.write(id + "," + taskId + ",");
+                            writeCsvField(out, name);
+                            out.write("," + s + "," + e + "," + duration + "\n");
+                        }
+                        first = false;
+
+                        // Next chunk starts after this row
+                        args[1] = Long.toString(s);
+                        args[2] = Long.toString(id);
+                        count++;
+                    }
+                } finally {
+                    c.close();
+                }
+                args[0] = args[1];
+
+                if(count < CHUNK_SIZE) break;
+            }
+
+            out.write(json ? "\n]\n" : "");
+            out.flush();
+        } catch(IOException e) {
+            // The reader went away
+            Log.w(TAG, "Export of " + uri + " stopped", e);
+        } finally {
+            try {
+                out.close();
+            } catch(IOException e) {
+                Log.w(TAG, "Failed to close export of " + uri, e);
+            }
+        }
+    }
+
+    // Quote a field if it contains a separator, quote or line break
+    static void writeCsvField(Writer out, String s) throws IOException {
+        if(s == null) return;
+
+        boolean quote = false;
+        for(int i = 0; i < s.length() && !quote; i++) {
+            char ch = s.charAt(i);
+            quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+        }
+
+        if(!quote) {
+            out.write(s);
+            return;
+        }
+
+        out.write('"');
+        out.write(s.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    static void writeJsonString(Writer out, String s) throws IOException {
+        if(s == null) {
+            out.write("null");
+            return;
+        }
+
+        out.write('"');
+        for(int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch(ch) {
+            case '"':  out.write("\\\""); break;
+            case '\\': out.write("\\\\"); break;
+            case '\n': out.write("\\n"); break;
+            case '\r': out.write("\\r"); break;
+            case '\t': out.write("\\t"); break;
+            default:
+                if(ch < 0x20) {
+                    out.write(String.format(Locale.US, "\\u%04x", (int)ch));
+                } else {
+                    out.write(ch);
+                }
+            }
+        }
+        out.write('"');
+    }
+}
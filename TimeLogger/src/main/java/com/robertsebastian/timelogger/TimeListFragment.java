@@ -2,92 +2,166 @@ package com.robertsebastian.timelogger;
 
 import android.app.ListFragment;
 import android.app.LoaderManager;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
-import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.RemoteException;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.ContextMenu;
+import android.view.LayoutInflater;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
-import android.widget.CursorAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ListView;
-import android.widget.ResourceCursorAdapter;
 import android.widget.TextView;
 
-import java.util.Calendar;
+import java.util.ArrayList;
 
 public class TimeListFragment extends ListFragment implements
         LoaderManager.LoaderCallbacks<Cursor>,
-        DateTimePickerDialogFragment.OnDateTimePickedListener
+        DateTimePickerDialogFragment.OnDateTimePickedListener,
+        LiveClock.OnTickListener,
+        AbsListView.OnScrollListener
 {
     public static final String TAG = TimeListFragment.class.getSimpleName();
 
-    // Handle periodic updates (0.001 hours) of the list
-    private Handler mHandler = new Handler();
-    private Runnable mUpdateRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if(getActivity() != null) {
-                getActivity().getContentResolver().notifyChange(TimeProvider.TIMES_URI, null);
-            }
-            mHandler.postDelayed(this, 3600);
-        } };
+    // History is loaded in pages of time ranges, newest first. Each page has its own loader (ID = page number).
+    private static final int PAGE_SIZE = 100;
+
+    // Start a new page once the list is scrolled within this many rows of the end
+    private static final int PAGE_PREFETCH = 25;
 
-    // Resume periodic updates on resumed
+    // Cursors for the loaded pages, and the start time each page ends on once a later page exists. The last page
+    // is limited to PAGE_SIZE rows; earlier ones cover a fixed start time window so nothing falls between pages.
+    private SparseArray<TimeRowsLoader.RowsCursor> mPages = new SparseArray<TimeRowsLoader.RowsCursor>();
+    private ArrayList<Long> mPageBounds = new ArrayList<Long>();
+
+    // Advances the duration of the running time range (0.001 hours at a time) between loads
+    private LiveClock mLiveClock = new LiveClock(this);
+
+    // Resume live updates on resumed
     @Override
     public void onResume() {
         super.onResume();
-        mHandler.postDelayed(mUpdateRunnable, 0);
+        mLiveClock.setVisible(true);
     }
 
-    // Cancel periodic updates on pause
+    // Cancel live updates on pause
     @Override
     public void onPause() {
         super.onPause();
-        mHandler.removeCallbacks(mUpdateRunnable);
+        mLiveClock.setVisible(false);
     }
 
-    static private class TimeRangeCursorAdapter extends ResourceCursorAdapter {
-        TimeRangeCursorAdapter(Context context, int layout, Cursor c, int flags) {
-            super(context, layout, c, flags);
+    static private class TimeRangeAdapter extends BaseAdapter {
+        private final LayoutInflater mInflater;
+
+        // Rows for every loaded page, and whether each one starts a new day
+        private TimeRowsLoader.TimeRow[] mRows = new TimeRowsLoader.TimeRow[0];
+        private boolean[] mHeaders = new boolean[0];
+
+        // Views in a row and what was last bound to them, so an unchanged row isn't set again
+        static private class ViewHolder {
+            TextView dateHeader;
+            TextView name;
+            TextView start;
+            TextView stop;
+            TextView duration;
+
+            TimeRowsLoader.TimeRow row;
+            boolean header;
         }
 
-        @Override
-        public void bindView(View v, Context context, Cursor c) {
-            String name   = c.getString(c.getColumnIndex("name"));
-            long start    = c.getLong(c.getColumnIndex("start"));
-            long stop     = c.getLong(c.getColumnIndex("stop"));
-            long duration = c.getLong(c.getColumnIndex("duration"));
-
-            Calendar date = Util.newCalendar(start);
-            Calendar prevDate = null;
-            if(!c.isFirst()) {
-                c.moveToPrevious();
-                prevDate = Util.newCalendar(c.getLong(c.getColumnIndex("start")));
-                c.moveToNext();
+        TimeRangeAdapter(Context context) {
+            mInflater = LayoutInflater.from(context);
+        }
+
+        public void setRows(TimeRowsLoader.TimeRow[] rows) {
+            mRows = rows;
+            mHeaders = new boolean[rows.length];
+            for(int i = 0; i < rows.length; i++) {
+                mHeaders[i] = i == 0 || rows[i].day != rows[i - 1].day;
             }
+            notifyDataSetChanged();
+        }
 
-            TextView dateHeaderView = (TextView)v.findViewById(R.id.date_header);
-            if(prevDate == null || !Util.isSameDay(date, prevDate)) {
-                dateHeaderView.setVisibility(View.VISIBLE);
-                dateHeaderView.setText(Util.formatDate(date));
+        @Override
+        public int getCount() {
+            return mRows.length;
+        }
+
+        @Override
+        public TimeRowsLoader.TimeRow getItem(int pos) {
+            return mRows[pos];
+        }
+
+        @Override
+        public long getItemId(int pos) {
+            return mRows[pos].id;
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(int pos, View v, ViewGroup parent) {
+            ViewHolder holder;
+            if(v == null) {
+                v = mInflater.inflate(R.layout.row_times, parent, false);
+
+                holder = new ViewHolder();
+                holder.dateHeader = (TextView)v.findViewById(R.id.date_header);
+                holder.name       = (TextView)v.findViewById(R.id.name);
+                holder.start      = (TextView)v.findViewById(R.id.start);
+                holder.stop       = (TextView)v.findViewById(R.id.stop);
+                holder.duration   = (TextView)v.findViewById(R.id.duration);
+                v.setTag(holder);
             } else {
-                dateHeaderView.setVisibility(View.GONE);
+                holder = (ViewHolder)v.getTag();
             }
 
-            ((TextView)v.findViewById(R.id.name)).setText(name);
-            ((TextView)v.findViewById(R.id.start)).setText(Util.formatTime(start));
-            ((TextView)v.findViewById(R.id.stop)).setText(Util.formatTime(stop));
-            ((TextView)v.findViewById(R.id.duration)).setText(Util.formatDuration(duration));
+            TimeRowsLoader.TimeRow row = mRows[pos];
+            boolean header = mHeaders[pos];
+
+            if(holder.row != row || holder.header != header) {
+                if(header) {
+                    holder.dateHeader.setVisibility(View.VISIBLE);
+                    holder.dateHeader.setText(row.dateText);
+                } else {
+                    holder.dateHeader.setVisibility(View.GONE);
+                }
+
+                holder.name.setText(row.name);
+                holder.start.setText(row.startText);
+                holder.stop.setText(row.stopText);
+                if(!row.isRunning()) holder.duration.setText(row.durationText);
+
+                holder.row = row;
+                holder.header = header;
+            }
+
+            if(row.isRunning()) bindDuration(holder);
+            return v;
+        }
+
+        // Show the live duration of a running row. Pages load at different times, so it's counted from the row's
+        // start rather than from the duration its page was built with.
+        static void bindDuration(ViewHolder holder) {
+            holder.duration.setText(Util.formatDuration(Util.getTimeMs() - holder.row.start));
         }
     }
 
@@ -98,20 +172,44 @@ public class TimeListFragment extends ListFragment implements
 
         super.onActivityCreated(savedInstanceState);
 
-        TimeRangeCursorAdapter adapter = new TimeRangeCursorAdapter(
-                getActivity(),
-                R.layout.row_times,
-                null, 0);
-
-        setListAdapter(adapter);
+        setListAdapter(new TimeRangeAdapter(getActivity()));
         setListShown(false);
         setEmptyText(getString(R.string.empty_time_list_text));
 
         registerForContextMenu(getListView());
+        getListView().setOnScrollListener(this);
 
         getLoaderManager().initLoader(0, null, this);
     }
 
+    // Number of pages currently requested
+    private int getPageCount() {
+        return mPageBounds.size() + 1;
+    }
+
+    // Load the next page of history if the last one is loaded and full
+    private void loadNextPage() {
+        int last = getPageCount() - 1;
+
+        TimeRowsLoader.RowsCursor c = mPages.get(last);
+        if(c == null || c.getRows().length < PAGE_SIZE) return;
+
+        // Close off the current last page at its oldest start time and continue from there
+        TimeRowsLoader.TimeRow[] rows = c.getRows();
+        mPageBounds.add(rows[rows.length - 1].start);
+
+        getLoaderManager().restartLoader(last, null, this);
+        getLoaderManager().initLoader(last + 1, null, this);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {}
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisible, int visibleCount, int totalCount) {
+        if(totalCount > 0 && firstVisible + visibleCount >= totalCount - PAGE_PREFETCH) loadNextPage();
+    }
+
     // Create context menu for modifying a time range
     @Override
     public void onCreateContextMenu(ContextMenu menu, View v, ContextMenu.ContextMenuInfo info) {
@@ -124,16 +222,18 @@ public class TimeListFragment extends ListFragment implements
         inflater.inflate(R.menu.time_list_context, menu);
 
         // Enable/Disable relevant items
-        Cursor c = getCursorAtPos((AdapterView.AdapterContextMenuInfo)info);
-        if(c == null) return;
-
-        Util.setMenuItemEnabled(menu, R.id.join_up, !c.isFirst());
-        Util.setMenuItemEnabled(menu, R.id.join_down, !c.isLast());
+        int pos = ((AdapterView.AdapterContextMenuInfo)info).position;
+        Util.setMenuItemEnabled(menu, R.id.join_up, pos > 0);
+        Util.setMenuItemEnabled(menu, R.id.join_down, pos < getListAdapter().getCount() - 1);
     }
 
-    private void startEditTimeRangeActivity(long id) {
+    // Pass the range along so the editor can open without querying it again
+    private void startEditTimeRangeActivity(TimeRowsLoader.TimeRow row) {
         Intent i = new Intent(getActivity(), EditTimeRangeActivity.class);
-        i.putExtra("id", id);
+        i.putExtra("id", row.id);
+        i.putExtra("task_id", row.taskId);
+        i.putExtra("start", row.start);
+        i.putExtra("stop", row.stop);
         startActivity(i);
     }
 
@@ -145,50 +245,69 @@ public class TimeListFragment extends ListFragment implements
         String action = args.getString("action");
         assert(action != null);
 
+        // Both halves of an edit are applied as one batch so they can't be left half done
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        Runnable save = new Runnable() {
+            @Override
+            public void run() {
+                applyBatch(ops);
+            }
+        };
+
         if(action.equals("split")) {
             // Split a time range
-            updateTime(args.getLong("_id"), args.getLong("start"), time);
-            insertTime(args.getLong("task_id"), time, args.getLong("stop"));
+            ops.add(updateTime(args.getLong("_id"), args.getLong("start"), time));
+            ops.add(insertTime(args.getLong("task_id"), time, args.getLong("stop")));
+
+            confirmOverlaps(save, args.getLong("start"), args.getLong("stop"), args.getLong("_id"));
 
         } else if(action.equals("join")) {
             // If tasks have the same ID, merge them into one, otherwise join them
             if(args.getLong("top_task_id") == args.getLong("bottom_task_id")) {
-                updateTime(args.getLong("top_id"), args.getLong("bottom_start"), args.getLong("top_stop"));
-                deleteTime(args.getLong("bottom_id"));
+                ops.add(updateTime(args.getLong("top_id"), args.getLong("bottom_start"), args.getLong("top_stop")));
+                ops.add(deleteTime(args.getLong("bottom_id")));
             } else {
-                updateTime(args.getLong("top_id"), time, args.getLong("top_stop"));
-                updateTime(args.getLong("bottom_id"), args.getLong("bottom_start"), time);
+                ops.add(updateTime(args.getLong("top_id"), time, args.getLong("top_stop")));
+                ops.add(updateTime(args.getLong("bottom_id"), args.getLong("bottom_start"), time));
             }
+
+            confirmOverlaps(save, args.getLong("bottom_start"), args.getLong("top_stop"),
+                    args.getLong("top_id"), args.getLong("bottom_id"));
         }
     }
 
+    // Ask before a split or join rewrites a span that runs into ranges other than its own. The picker keeps the new
+    // boundary inside the span, but the ranges around it may already overlap it.
+    private void confirmOverlaps(Runnable save, long start, long stop, long... exclude) {
+        if(getActivity() == null) return;
+        EditTimeRangeActivity.confirmOverlaps(getActivity(), save, start, stop == -1 ? Long.MAX_VALUE : stop,
+                exclude);
+    }
+
     // Show dialog for joining two time ranges
     private void showTimeJoinDialog(int top, int bottom, int init) {
         assert(getListAdapter() != null);
         assert(getFragmentManager() != null);
 
-        Cursor c = ((CursorAdapter)getListAdapter()).getCursor();
-        if(c == null) return;
-
         // Data needed to process the join when the dialog returns
         Bundle args = new Bundle();
         args.putString("action", "join");
 
         // Extract data from newer time range
-        c.moveToPosition(top);
-        args.putLong("top_id",      c.getLong(c.getColumnIndex("_id")));
-        args.putLong("top_task_id", c.getLong(c.getColumnIndex("task_id")));
-        args.putLong("top_stop",    c.getLong(c.getColumnIndex("stop")));
+        TimeRowsLoader.TimeRow row = getRowAtPos(top);
+        args.putLong("top_id",      row.id);
+        args.putLong("top_task_id", row.taskId);
+        args.putLong("top_stop",    row.stop);
 
         // Extract data from older time range
-        c.moveToPosition(bottom);
-        args.putLong("bottom_id",      c.getLong(c.getColumnIndex("_id")));
-        args.putLong("bottom_task_id", c.getLong(c.getColumnIndex("task_id")));
-        args.putLong("bottom_start",   c.getLong(c.getColumnIndex("start")));
+        row = getRowAtPos(bottom);
+        args.putLong("bottom_id",      row.id);
+        args.putLong("bottom_task_id", row.taskId);
+        args.putLong("bottom_start",   row.start);
 
         // Determine which time range to initialize the dialog setting to
-        c.moveToPosition(init);
-        final long initTime = c.getLong(c.getColumnIndex(init == bottom ? "stop" : "start"));
+        row = getRowAtPos(init);
+        final long initTime = init == bottom ? row.stop : row.start;
 
         // Nothing to do if the time range is too short
         long maxTime = (args.getLong("top_stop") == -1 ? Util.getTimeMs() : args.getLong("top_stop")) - 60000;
@@ -207,19 +326,16 @@ public class TimeListFragment extends ListFragment implements
         assert(getListAdapter() != null);
         assert(getFragmentManager() != null);
 
-        Cursor c = ((CursorAdapter)getListAdapter()).getCursor();
-        if(c == null) return;
-
         // Data needed to process the join when the dialog returns
         Bundle args = new Bundle();
         args.putString("action", "split");
 
-        // Copy data from cursor
-        c.moveToPosition(pos);
-        args.putLong("_id",     c.getLong(c.getColumnIndex("_id")));
-        args.putLong("task_id", c.getLong(c.getColumnIndex("task_id")));
-        args.putLong("start",   c.getLong(c.getColumnIndex("start")));
-        args.putLong("stop",    c.getLong(c.getColumnIndex("stop")));
+        // Copy data from row
+        TimeRowsLoader.TimeRow row = getRowAtPos(pos);
+        args.putLong("_id",     row.id);
+        args.putLong("task_id", row.taskId);
+        args.putLong("start",   row.start);
+        args.putLong("stop",    row.stop);
 
         // Nothing to do if the range is too short (less than two minutes)
         long maxTime = (args.getLong("stop") == -1 ? Util.getTimeMs() : args.getLong("stop")) - 60000;
@@ -236,77 +352,65 @@ public class TimeListFragment extends ListFragment implements
         dialog.show(getFragmentManager(), "split_dialog");
     }
 
-    // Modify the start/stop times of a time range with the given ID
-    private void updateTime(long id, long start, long stop) {
+    // Apply a set of time range changes in a single provider transaction, returning the results or null if it
+    // failed
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops) {
         assert(getActivity() != null);
 
-        ContentValues vals = new ContentValues();
-        vals.put("start", start);
-        vals.put("stop", stop);
+        try {
+            return getActivity().getContentResolver().applyBatch(TimeProvider.AUTHORITY, ops);
+        } catch(RemoteException e) {
+            Log.e(TAG, "Failed to apply time range changes", e);
+        } catch(OperationApplicationException e) {
+            Log.e(TAG, "Failed to apply time range changes", e);
+        }
+        return null;
+    }
 
+    // Modify the start/stop times of a time range with the given ID
+    private ContentProviderOperation updateTime(long id, long start, long stop) {
         Uri uri = ContentUris.withAppendedId(TimeProvider.TIMES_URI, id);
         //assert(uri != null);
 
-        getActivity().getContentResolver().update(uri, vals, null, null);
+        return ContentProviderOperation.newUpdate(uri)
+                .withValue("start", start)
+                .withValue("stop", stop)
+                .build();
     }
 
     // Insert a new time range
-    private void insertTime(long taskId, long start, long stop) {
-        assert(getActivity() != null);
-
-        ContentValues vals = new ContentValues();
-        vals.put("task_id", taskId);
-        vals.put("start", start);
-        vals.put("stop", stop);
-
+    private ContentProviderOperation insertTime(long taskId, long start, long stop) {
         Log.d(TAG, "Inserting " + taskId);
-        getActivity().getContentResolver().insert(TimeProvider.TIMES_URI, vals);
+        return ContentProviderOperation.newInsert(TimeProvider.TIMES_URI)
+                .withValue("task_id", taskId)
+                .withValue("start", start)
+                .withValue("stop", stop)
+                .build();
     }
 
     // Delete the time range with a given ID
-    private void deleteTime(long id) {
-        assert(getActivity() != null);
-
+    private ContentProviderOperation deleteTime(long id) {
         Uri uri = TimeProvider.TIMES_URI.buildUpon().appendPath(Long.toString(id)).build();
-        if(uri == null) return;
-
-        getActivity().getContentResolver().delete(uri, null, null);
+        return ContentProviderOperation.newDelete(uri).build();
     }
 
-    // Delete the time range at position in the list adapter's cursor
+    // Delete the time range at position in the list
     private void deleteTimeAtPos(int pos) {
-        assert(getListAdapter() != null);
-
-        Cursor c = ((CursorAdapter)getListAdapter()).getCursor();
-        if(c == null) return;
-
-        c.moveToPosition(pos);
-        long id = c.getLong(c.getColumnIndex("_id"));
-
-        deleteTime(id);
-    }
-
-    // Get the current cursor and move it to the position at which a context menu is open
-    public Cursor getCursorAtPos(AdapterView.AdapterContextMenuInfo info) {
-        assert(info != null);
-        return getCursorAtPos(info.position);
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(deleteTime(getRowAtPos(pos).id));
+        applyBatch(ops);
     }
 
-    public Cursor getCursorAtPos(int pos) {
+    // Get the row shown at a list position
+    public TimeRowsLoader.TimeRow getRowAtPos(int pos) {
         assert(getListAdapter() != null);
-
-        Cursor c = ((CursorAdapter)getListAdapter()).getCursor();
-        if(c == null) return null;
-
-        c.moveToPosition(pos);
-        return c;
+        return ((TimeRangeAdapter)getListAdapter()).getItem(pos);
     }
 
     // Handle item selected in listview
     @Override
     public void onListItemClick(ListView l, View v, int pos, long id) {
-        Cursor c = getCursorAtPos(pos);
-        startEditTimeRangeActivity(c.getLong(c.getColumnIndex("_id")));
+        startEditTimeRangeActivity(getRowAtPos(pos));
     }
 
     // Handle option selection from context menu
@@ -318,11 +422,10 @@ public class TimeListFragment extends ListFragment implements
         int itemId = item.getItemId();
         int itemPos = ((AdapterView.AdapterContextMenuInfo)item.getMenuInfo()).position;
 
-        Cursor c = getCursorAtPos((AdapterView.AdapterContextMenuInfo)item.getMenuInfo());
-        if(c == null) return true;
+        if(itemPos >= getListAdapter().getCount()) return true;
 
         if(itemId == R.id.edit) {
-            startEditTimeRangeActivity(c.getLong(c.getColumnIndex("_id")));
+            startEditTimeRangeActivity(getRowAtPos(itemPos));
         } else if(itemId == R.id.join_up) {
             showTimeJoinDialog(itemPos - 1, itemPos, itemPos - 1);
         } else if(itemId == R.id.join_down) {
@@ -340,18 +443,53 @@ public class TimeListFragment extends ListFragment implements
 
     // Handle database cursor loader
     @Override
-    public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        return new CursorLoader(
+    public Loader<Cursor> onCreateLoader(int page, Bundle bundle) {
+        Uri.Builder uri = TimeProvider.TIMES_URI.buildUpon();
+        if(page > 0) {
+            uri.appendQueryParameter("before", Long.toString(mPageBounds.get(page - 1)));
+        }
+        if(page < mPageBounds.size()) {
+            uri.appendQueryParameter("after", Long.toString(mPageBounds.get(page)));
+        } else {
+            uri.appendQueryParameter("limit", Integer.toString(PAGE_SIZE));
+        }
+
+        return new TimeRowsLoader(
             this.getActivity(),
-            TimeProvider.TIMES_URI,
-            null, null, null,
+            uri.build(),
             "start desc");
     }
 
+    // Show every loaded page, stopping at the first one still waiting for its data
+    private void updatePages() {
+        int count = 0;
+        int pages = 0;
+        for(; pages < getPageCount() && mPages.get(pages) != null; pages++) {
+            count += mPages.get(pages).getRows().length;
+        }
+
+        TimeRowsLoader.TimeRow[] rows = new TimeRowsLoader.TimeRow[count];
+        for(int i = 0, pos = 0; i < pages; i++) {
+            TimeRowsLoader.TimeRow[] page = mPages.get(i).getRows();
+            System.arraycopy(page, 0, rows, pos, page.length);
+            pos += page.length;
+        }
+        ((TimeRangeAdapter)getListAdapter()).setRows(rows);
+    }
+
     @Override
     public void onLoadFinished(Loader<Cursor> cursorLoader, Cursor cursor) {
         assert(getListAdapter()) != null;
-        ((CursorAdapter)getListAdapter()).swapCursor(cursor);
+        mPages.put(cursorLoader.getId(), (TimeRowsLoader.RowsCursor)cursor);
+        updatePages();
+
+        // Only keep the live clock going while a time range is running
+        TimeRangeAdapter adapter = (TimeRangeAdapter)getListAdapter();
+        boolean running = false;
+        for(int i = 0; i < adapter.getCount() && !running; i++) {
+            running = adapter.getItem(i).isRunning();
+        }
+        mLiveClock.reset(running);
 
         if (isResumed()) {
             setListShown(true);
@@ -360,9 +498,25 @@ public class TimeListFragment extends ListFragment implements
         }
     }
 
+    // Advance the duration of the running time range in the visible rows
+    @Override
+    public void onTick(long elapsed) {
+        if(getView() == null) return;
+
+        ListView list = getListView();
+        for(int i = 0; i < list.getChildCount(); i++) {
+            Object tag = list.getChildAt(i).getTag();
+            if(!(tag instanceof TimeRangeAdapter.ViewHolder)) continue;
+
+            TimeRangeAdapter.ViewHolder holder = (TimeRangeAdapter.ViewHolder)tag;
+            if(holder.row != null && holder.row.isRunning()) TimeRangeAdapter.bindDuration(holder);
+        }
+    }
+
     @Override
     public void onLoaderReset(Loader<Cursor> cursorLoader) {
         assert(getListAdapter()) != null;
-        ((CursorAdapter)getListAdapter()).swapCursor(null);
+        mPages.remove(cursorLoader.getId());
+        updatePages();
     }
-}
\ No newline at end of file
+}
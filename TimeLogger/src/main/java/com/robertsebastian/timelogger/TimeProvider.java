@@ -1,24 +1,57 @@
 package com.robertsebastian.timelogger;
 
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.SparseArray;
 
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TimeProvider extends ContentProvider {
     public static final String TAG = TimeProvider.class.getSimpleName();
@@ -29,19 +62,75 @@ public class TimeProvider extends ContentProvider {
 
     public static final Uri TASKS_URI =
             new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(AUTHORITY).path("tasks").build();
+    // Task list matching a full-text search, see query()
+    public static final Uri TASK_SEARCH_URI = Uri.withAppendedPath(TASKS_URI, "search");
+
+    // Notified rather than queried, for changes that only start or stop tasks, so observers of the task rows
+    // themselves (see TaskCatalog) can tell them apart
+    public static final Uri TASK_SELECTION_URI = Uri.withAppendedPath(TASKS_URI, "selection");
+
     public static final Uri TIMES_URI =
             new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(AUTHORITY).path("times").build();
 
+    // Streamed exports, see TimeExporter
+    public static final Uri EXPORT_URI =
+            new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(AUTHORITY).path("export").build();
+    public static final Uri EXPORT_CSV_URI  = Uri.withAppendedPath(EXPORT_URI, "times.csv");
+    public static final Uri EXPORT_JSON_URI = Uri.withAppendedPath(EXPORT_URI, "times.json");
+
+    // Keys in the settings table
+    public static final String SETTING_MIN_RANGE_LENGTH = "min_range_length";  // Shorter closed ranges are dropped
+    public static final String SETTING_MAX_RANGE_LENGTH = "max_range_length";  // No closed range is longer, see TASK_DURATION_COL
+    public static final String SETTING_TASK_DAYS_ZONE   = "task_days_zone";    // Zone task_days was filed in, see checkTaskDaysZone()
+
+    // Sync state, see SyncEngine: this device's random ID, set while pulled changes are written so the change log
+    // triggers skip them, the last change log entry the server acknowledged and the server's cursor
+    public static final String SETTING_SYNC_CLIENT   = "sync_client";
+    public static final String SETTING_SYNC_APPLYING = "sync_applying";
+    public static final String SETTING_SYNC_PUSHED   = "sync_pushed";
+    public static final String SETTING_SYNC_PULLED   = "sync_pulled";
+
+    // call() methods to read or write a setting: arg is the setting name, "value" is a long in the extras/result
+    public static final String METHOD_GET_SETTING = "get_setting";
+    public static final String METHOD_SET_SETTING = "set_setting";
+
+    // call() method to make a task the running one, or stop it if it already is: arg is the task ID, "selected" in
+    // the result is the task now running or -1
+    public static final String METHOD_SWITCH_TASK = "switch_task";
+
+    // call() method summing up the task list for a date range, see getTotals(). The extras hold the "start" and
+    // "stop" of the range, the list's "selection" and "selection_args", and the "query" of a task search.
+    public static final String METHOD_GET_TOTALS = "get_totals";
+
+    // call() method returning the dump() text as "metrics", or with arg "reset" clearing the provider metrics
+    public static final String METHOD_GET_METRICS = "get_metrics";
+
+    // call() method listing the time ranges overlapping ["start", "stop") from the extras, leaving out the IDs in
+    // "exclude". "overlaps" in the result holds (id, start, stop) triples, see findOverlaps().
+    public static final String METHOD_FIND_OVERLAPS = "find_overlaps";
+
+    // call() method checking the whole history for overlapping time ranges: "pairs" in the result holds the IDs
+    // of each overlapping pair, up to MAX_AUDIT_PAIRS of them
+    public static final String METHOD_AUDIT_OVERLAPS = "audit_overlaps";
+
+    // call() method syncing with the in-process LoopbackSyncServer. The result holds the changes "pushed" and
+    // "pulled", the "bytes_sent" and "bytes_received" on the wire and whether the two sides "converged" to the
+    // same rows.
+    public static final String METHOD_SYNC = "sync";
+
     private static final UriMatcher URI_MATCHER;
 
     public static final int TIME_LIST    = 1;
     public static final int TIME_ID      = 2;
     public static final int TASK_LIST = 3;
     public static final int TASK_ID = 4;
+    public static final int EXPORT = 5;
+    public static final int TASK_SEARCH = 6;
 
     private static final SparseArray<String> URI_TYPE_TABLE;
     private static final String TASKS_TABLE = "tasks";
     private static final String TIMES_TABLE = "times";
+    private static final String TASK_DAYS_TABLE = "task_days";
     private static final String TIMES_TABLE_MORE =
             "times INNER JOIN tasks ON (times.task_id = tasks._id)";
 
@@ -49,18 +138,46 @@ public class TimeProvider extends ContentProvider {
     private static final HashMap<String, String> TASK_PROJECTION;
     private static final HashMap<String, String> TIME_PROJECTION;
 
+    private static final String MAX_RANGE_LENGTH_SQL =
+            "(SELECT value FROM settings WHERE name = '" + SETTING_MAX_RANGE_LENGTH + "')";
+
+    // Task columns over a date range, bound as parameters so every range shares one statement (see addTaskArgs()).
+    // Time is clipped to the window [a, b) of whole local days the range covers, so a range over midnight counts
+    // on both days. Closed ranges are summed from the per-day rollup, which files each range under the day it
+    // starts, and then corrected at both ends: ranges starting in the window but running past b give back the
+    // part after it, and ranges starting before a add the part after a. No closed range is longer than the
+    // max_range_length setting, so each correction only looks at ranges starting that far before its end of the
+    // window, a range scan on (task_id, start). The open range (stop = -1) is clipped live, up to a "now" bound
+    // once per query. Parameters are text, so the ones compared by min()/max() are cast to numbers first.
+    private static final String TASK_DURATION_COL = "((SELECT total(duration) FROM task_days "
+            + "WHERE task_id = tasks._id AND day >= ? AND day <= ?) - "
+            + "(SELECT total(stop - ?) FROM times WHERE task_id = tasks._id "
+            + "AND start >= max(CAST(? AS INTEGER), ? - " + MAX_RANGE_LENGTH_SQL + ") AND start < ? AND stop > ?) + "
+            + "(SELECT total(min(stop, CAST(? AS INTEGER)) - ?) FROM times WHERE task_id = tasks._id "
+            + "AND start >= ? - " + MAX_RANGE_LENGTH_SQL + " AND start < ? AND stop > ?) + "
+            + "(SELECT total(max(? - max(start, CAST(? AS INTEGER)), 0)) FROM times "
+            + "WHERE task_id = tasks._id AND stop = -1 AND start < ?)) AS duration";
+
+    // Number of open ranges counted live in the duration column, i.e. how fast the duration is growing: the ones
+    // reaching into the window while "now" is inside it
+    private static final String TASK_RUNNING_COL = "(SELECT count(*) FROM times "
+            + "WHERE task_id = tasks._id AND stop = -1 AND start < ?) AS running";
+
     static {
         URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
         URI_MATCHER.addURI(AUTHORITY, "times", TIME_LIST);
         URI_MATCHER.addURI(AUTHORITY, "times/#", TIME_ID);
         URI_MATCHER.addURI(AUTHORITY, "tasks", TASK_LIST);
         URI_MATCHER.addURI(AUTHORITY, "tasks/#", TASK_ID);
+        URI_MATCHER.addURI(AUTHORITY, "tasks/search", TASK_SEARCH);
+        URI_MATCHER.addURI(AUTHORITY, "export/*", EXPORT);
 
         URI_TYPE_TABLE = new SparseArray<String>();
         URI_TYPE_TABLE.put(TIME_LIST, TIMES_TABLE_MORE);
         URI_TYPE_TABLE.put(TIME_ID, TIMES_TABLE_MORE);
         URI_TYPE_TABLE.put(TASK_LIST, TASKS_TABLE);
         URI_TYPE_TABLE.put(TASK_ID, TASKS_TABLE);
+        URI_TYPE_TABLE.put(TASK_SEARCH, TASKS_TABLE);
 
         TASK_PROJECTION = new HashMap<String, String>();
         TASK_PROJECTION.put("_id", "_id");
@@ -70,14 +187,15 @@ public class TimeProvider extends ContentProvider {
         TASK_PROJECTION.put("last_used", "last_used");
         TASK_PROJECTION.put("selected", "selected");
         TASK_PROJECTION.put("hidden", "hidden");
-        TASK_PROJECTION.put("duration", buildTaskDurationCol(Long.MIN_VALUE, Long.MAX_VALUE));
+        TASK_PROJECTION.put("duration", TASK_DURATION_COL);
+        TASK_PROJECTION.put("running", TASK_RUNNING_COL);
 
         TIME_PROJECTION = new HashMap<String, String>();
         TIME_PROJECTION.put("_id",         "times._id as _id");
         TIME_PROJECTION.put("task_id",     "task_id");
         TIME_PROJECTION.put("start",       "start");
         TIME_PROJECTION.put("stop",        "stop");
-        TIME_PROJECTION.put("duration",    "(CASE stop WHEN -1 THEN strftime('%s', 'now') * 1e3 ELSE stop END) - start AS duration ");
+        TIME_PROJECTION.put("duration",    "(CASE stop WHEN -1 THEN ? ELSE stop END) - start AS duration ");
         TIME_PROJECTION.put("name",        "tasks.name AS name");
         TIME_PROJECTION.put("description", "tasks.description AS description");
 
@@ -86,22 +204,263 @@ public class TimeProvider extends ContentProvider {
         URI_TYPE_PROJECTION.put(TIME_ID, TIME_PROJECTION);
         URI_TYPE_PROJECTION.put(TASK_LIST, TASK_PROJECTION);
         URI_TYPE_PROJECTION.put(TASK_ID, TASK_PROJECTION);
+        URI_TYPE_PROJECTION.put(TASK_SEARCH, TASK_PROJECTION);
     }
 
+    private static final long ONE_DAY = 24 * 3600 * 1000; // 24 hours in milliseconds
+
+    // Current schema version -- add an upgrade step to DbHelper.upgradeTo() when bumping this
+    private static final int DB_VERSION = 7;
+
     private DbHelper mDbHelper = null;
 
-    static public String buildTaskDurationCol(long start, long stop) {
-        String format = "(SELECT sum("
-                + "(CASE stop WHEN -1 THEN strftime('%%s', 'now') * 1e3 ELSE stop END) - start) FROM times "
-                + "WHERE tasks._id = task_id AND start >= %d AND start <= %d) AS duration";
-        return String.format(Locale.US, format, start, stop);
+    private final ProviderMetrics mMetrics = ProviderMetrics.get();
+
+    // Query SQL by shape, see getQueryTemplate()
+    private static final int QUERY_TEMPLATES = 32;
+    private final LruCache<String, String> mQueryTemplates = new LruCache<String, String>(QUERY_TEMPLATES);
+
+    // Task list and totals results by statement and arguments, see queryTasks()
+    private static final int TASK_RESULTS = 16;
+    private final LruCache<String, TaskResult> mTaskResults = new LruCache<String, TaskResult>(TASK_RESULTS);
+
+    // Compiled insert/update/delete statements by SQL, per thread, see getStatement()
+    private static final int MAX_STATEMENTS = 32;
+    private static final String DELETE_TIME = "DELETE FROM " + TIMES_TABLE + " WHERE _id = ?";
+    private static final String DELETE_TASK = "DELETE FROM " + TASKS_TABLE + " WHERE _id = ?";
+    private final ThreadLocal<HashMap<String, SQLiteStatement>> mStatements =
+            new ThreadLocal<HashMap<String, SQLiteStatement>>();
+
+    // Closed ranges under the minimum length left behind by edits and imports are removed on a background thread a
+    // little after the change, a batch of row IDs per transaction
+    private static final long COMPACTION_DELAY = 5000;
+    private static final int COMPACTION_BATCH = 2000;
+
+    private HandlerThread mMaintenanceThread = null;
+    private Handler mMaintenance = null;
+
+    private final Runnable mCompaction = new Runnable() {
+        @Override
+        public void run() {
+            compactShortRanges();
+        }
+    };
+
+    private final Runnable mTightenMaxRangeLength = new Runnable() {
+        @Override
+        public void run() {
+            tightenMaxRangeLength();
+        }
+    };
+
+    private final Runnable mCheckTaskDaysZone = new Runnable() {
+        @Override
+        public void run() {
+            checkTaskDaysZone();
+        }
+    };
+
+    private final BroadcastReceiver mTimeZoneReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Util.onTimeZoneChanged();
+            mMaintenance.post(mCheckTaskDaysZone);
+        }
+    };
+
+    // Bumped after every committed change, so results derived from the tables can be cached until it moves
+    private static final AtomicLong sDataVersion = new AtomicLong();
+
+    // Changes held back until the batch running on this thread commits: the notifications with the days each
+    // touched, and the days of time ranges to refresh in the interval index
+    static private class Batch {
+        final HashMap<Uri, long[]> notifications = new HashMap<Uri, long[]>();
+        long[] timesDays = null;
+    }
+
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    // Time ranges by start and stop for overlap checks, kept in step with the times table by refreshing the days
+    // each commit touched. Loaded on the maintenance thread at startup and after changes that could reach any day.
+    // Empty ranges never overlap anything and are left out.
+    private final IntervalIndex mIntervals = new IntervalIndex();
+    private boolean mIntervalsLoaded = false;  // Guarded by mIntervals
+
+    private final Runnable mLoadIntervals = new Runnable() {
+        @Override
+        public void run() {
+            getIntervals();
+        }
+    };
+
+    // Held through a sync, see sync()
+    private final Object mSyncLock = new Object();
+    private volatile String mLastSync = null;
+
+    // Most pairs the overlap audit returns
+    private static final int MAX_AUDIT_PAIRS = 1000;
+
+    // Day span of a change that could touch any day
+    private static final long[] ALL_DAYS = {Long.MIN_VALUE, Long.MAX_VALUE};
+
+    // Local epoch day of a millisecond time column, as stored in the task_days rollup table
+    private static String daySql(String col) {
+        return "(strftime('%s', " + col + " / 1000, 'unixepoch', 'localtime') / 86400)";
+    }
+
+    // Columns returned for a null projection
+    private static final String[] TIME_COLUMNS = {"_id", "task_id", "start", "stop", "duration", "name", "description"};
+    private static final String[] TASK_COLUMNS =
+            {"_id", "name", "description", "time_added", "last_used", "selected", "hidden", "duration", "running"};
+
+    // Start of the local day containing a time, and of the one after it. The open ends of a range map to
+    // themselves.
+    private static long getWindowStart(long start) {
+        return start == Long.MIN_VALUE ? start : Util.getStartOfDayMs(Util.toEpochDay(start));
+    }
+
+    private static long getWindowStop(long stop) {
+        return stop == Long.MAX_VALUE ? stop : Util.getStartOfDayMs(Util.toEpochDay(stop - 1) + 1);
+    }
+
+    // Arguments for the task range columns in a projection, in the order they appear
+    private static void addTaskArgs(ArrayList<String> args, String[] projection, long start, long stop, long now) {
+        long a = getWindowStart(start);
+        long b = getWindowStop(stop);
+        String aArg = Long.toString(a);
+        String bArg = Long.toString(b);
+
+        for(String col : projection) {
+            if(col.equals("duration")) {
+                // Util.toEpochDay() matches daySql()
+                args.add(Long.toString(Util.toEpochDay(start)));
+                args.add(Long.toString(stop == Long.MAX_VALUE ? stop : Util.toEpochDay(stop - 1)));
+
+                // Closed ranges running past the end
+                args.add(bArg);
+                args.add(aArg);
+                args.add(bArg);
+                args.add(bArg);
+                args.add(bArg);
+
+                // Closed ranges starting before the start
+                args.add(bArg);
+                args.add(aArg);
+                args.add(aArg);
+                args.add(aArg);
+                args.add(aArg);
+
+                // The open range up to now
+                String endArg = Long.toString(Math.min(now, b));
+                args.add(endArg);
+                args.add(aArg);
+                args.add(endArg);
+            } else if(col.equals("running")) {
+                args.add(now >= a && now < b ? bArg : Long.toString(Long.MIN_VALUE));
+            }
+        }
+    }
+
+    // Time up to which a task result read at now keeps growing at the rate of its running column: the open ranges
+    // only start counting once now reaches the window and stop once it leaves it
+    private static long getRunningUntil(long start, long stop, long now) {
+        long a = getWindowStart(start);
+        long b = getWindowStop(stop);
+        return now < a ? a : (now < b ? b : Long.MAX_VALUE);
     }
 
     ////////////////////////////////////////////////////////////////////////////////
-    public class DbHelper extends SQLiteOpenHelper {
+    public static class DbHelper extends SQLiteOpenHelper {
         DbHelper(Context context) {
-            //super(context, null, null, 1);
-            super(context, "time_db", null, 1);
+            this(context, "time_db");
+        }
+
+        // A null name keeps the database in memory, for tests
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        DbHelper(Context context, String name) {
+            super(context, name, null, DB_VERSION);
+
+            // Write-ahead logging lets list queries read from a pooled connection while the provider writes,
+            // instead of readers and the writer taking turns on the rollback journal (see WalBenchmarkTest)
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if(db.isReadOnly()) return;
+
+            // Before Jelly Bean, WAL has to be switched on per open database. Keep the rollback journal, truncated
+            // rather than deleted after each commit, if it isn't available.
+            boolean wal = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ?
+                    db.isWriteAheadLoggingEnabled() : db.enableWriteAheadLogging();
+            if(!wal) {
+                pragma(db, "journal_mode = TRUNCATE");
+                return;
+            }
+
+            // All writes go through this provider's single writer connection: syncing the log at checkpoints only
+            // is enough to keep the database consistent, and the log file is trimmed back after checkpoints
+            db.execSQL("PRAGMA synchronous = NORMAL");
+            pragma(db, "journal_size_limit = " + (512 * 1024));
+        }
+
+        // Run a pragma that reports its new value, which execSQL() won't accept on all versions
+        private void pragma(SQLiteDatabase db, String pragma) {
+            Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+            if(c != null) {
+                c.moveToFirst();
+                c.close();
+            }
+        }
+
+        // Per-task, per-day duration totals of closed time ranges, maintained by triggers on the times table
+        private void createTaskDays(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE task_days ("
+                    + "task_id    INTEGER NOT NULL,"
+                    + "day        INTEGER NOT NULL,"
+                    + "duration   INTEGER NOT NULL DEFAULT 0,"
+                    + "PRIMARY KEY (task_id, day))");
+
+            db.execSQL("CREATE TRIGGER task_days_insert "
+                    + "AFTER INSERT ON times "
+                    + "FOR EACH ROW WHEN new.stop != -1 "
+                    + "BEGIN "
+                    + "    INSERT OR IGNORE INTO task_days (task_id, day) VALUES (new.task_id, " + daySql("new.start") + ");"
+                    + "    UPDATE task_days SET duration = duration + (new.stop - new.start) "
+                    + "        WHERE task_id = new.task_id AND day = " + daySql("new.start") + ";"
+                    + "END");
+
+            db.execSQL("CREATE TRIGGER task_days_delete "
+                    + "AFTER DELETE ON times "
+                    + "FOR EACH ROW WHEN old.stop != -1 "
+                    + "BEGIN "
+                    + "    UPDATE task_days SET duration = duration - (old.stop - old.start) "
+                    + "        WHERE task_id = old.task_id AND day = " + daySql("old.start") + ";"
+                    + "END");
+
+            // Take the old range out of its bucket and add the new one -- either may still be open
+            db.execSQL("CREATE TRIGGER task_days_update "
+                    + "AFTER UPDATE OF task_id, start, stop ON times "
+                    + "FOR EACH ROW "
+                    + "BEGIN "
+                    + "    UPDATE task_days SET duration = duration - (old.stop - old.start) "
+                    + "        WHERE old.stop != -1 AND task_id = old.task_id AND day = " + daySql("old.start") + ";"
+                    + "    INSERT OR IGNORE INTO task_days (task_id, day) "
+                    + "        SELECT new.task_id, " + daySql("new.start") + " WHERE new.stop != -1;"
+                    + "    UPDATE task_days SET duration = duration + (new.stop - new.start) "
+                    + "        WHERE new.stop != -1 AND task_id = new.task_id AND day = " + daySql("new.start") + ";"
+                    + "END");
+        }
+
+        // Rebuild the rollup from scratch, after an upgrade or when the time zone has changed since the ranges were
+        // filed (see checkTaskDaysZone())
+        void rebuildTaskDays(SQLiteDatabase db) {
+            db.execSQL("DELETE FROM task_days");
+            db.execSQL("INSERT INTO task_days (task_id, day, duration) "
+                    + "SELECT task_id, " + daySql("start") + ", total(stop - start) FROM times "
+                    + "WHERE stop != -1 GROUP BY task_id, " + daySql("start"));
         }
 
         @Override
@@ -140,6 +499,9 @@ public class TimeProvider extends ContentProvider {
                     + "    INSERT INTO times (task_id) values (new._id);"
                     + "END");
 
+            // Bring the version 1 schema up to date with the same steps used for existing databases
+            for(int version = 2; version <= DB_VERSION; version++) upgradeTo(db, version);
+
             long start = Calendar.getInstance().getTimeInMillis();
 
             ContentValues proj = new ContentValues();
@@ -190,8 +552,181 @@ public class TimeProvider extends ContentProvider {
         }
 
         @Override
-        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i2) {
-            Log.e(TAG, "Attempt to upgrade db from " + i + " to " + i2);
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // Steps run one version at a time inside the transaction SQLiteOpenHelper opens for us, so a
+            // failed step leaves the database untouched at its old version
+            for(int version = oldVersion + 1; version <= newVersion; version++) {
+                Log.d(TAG, "Upgrading db from " + (version - 1) + " to " + version);
+                upgradeTo(db, version);
+            }
+        }
+
+        // Migrate the schema from version - 1 to version, carrying existing data forward
+        private void upgradeTo(SQLiteDatabase db, int version) {
+            switch(version) {
+            case 2:
+                createTaskDays(db);
+                rebuildTaskDays(db);
+                break;
+            case 3:
+                createTimesIndexes(db);
+                break;
+            case 4:
+                createSettings(db);
+                replaceStopPreviousTrigger(db);
+                break;
+            case 5:
+                createTaskSearch(db);
+                break;
+            case 6:
+                createMaxRangeLength(db);
+                break;
+            case 7:
+                createChangeLog(db);
+                break;
+            default:
+                throw new IllegalStateException("No upgrade step to db version " + version);
+            }
+        }
+
+        // Indexes for the per-task range lookups, the open range (stop = -1) lookups in the triggers and
+        // the time list ordering
+        private void createTimesIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX times_task_start ON times (task_id, start)");
+            db.execSQL("CREATE INDEX times_stop_task ON times (stop, task_id)");
+            db.execSQL("CREATE INDEX times_start ON times (start)");
+        }
+
+        // Name/value settings that triggers and queries can read
+        private void createSettings(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE settings ("
+                    + "name       TEXT PRIMARY KEY NOT NULL,"
+                    + "value      INTEGER NOT NULL)");
+            db.execSQL("INSERT INTO settings (name, value) VALUES ('" + SETTING_MIN_RANGE_LENGTH + "', 3600)");
+        }
+
+        // Only look at the range being closed when a task is deselected: drop it if it would be too short, otherwise
+        // close it. Both go through the (stop, task_id) index. Older short ranges are left to compactShortRanges().
+        private void replaceStopPreviousTrigger(SQLiteDatabase db) {
+            db.execSQL("DROP TRIGGER IF EXISTS stop_previous_time_range");
+            db.execSQL("CREATE TRIGGER stop_previous_time_range "
+                    + "AFTER UPDATE OF selected ON tasks "
+                    + "FOR EACH ROW WHEN old.selected = 1 AND new.selected = 0 "
+                    + "BEGIN "
+                    + "    DELETE FROM times WHERE stop = -1 AND task_id = new._id AND "
+                    + "        (strftime('%s', 'now') * 1e3) - start < "
+                    + "        (SELECT value FROM settings WHERE name = '" + SETTING_MIN_RANGE_LENGTH + "');"
+                    + "    UPDATE times SET stop = (strftime('%s', 'now') * 1e3) WHERE task_id = new._id AND stop = -1;"
+                    + "END");
+        }
+
+        // Full-text index over task names and descriptions, one row per task with the task ID as its docid. It
+        // keeps its own copy of the text rather than reading tasks as external content, which needs a newer SQLite
+        // than older devices ship. The triggers only fire for the text columns, so selection changes don't touch
+        // it. A task replaced through INSERT OR REPLACE doesn't fire the delete trigger, so the insert trigger
+        // clears out any stale row first.
+        private void createTaskSearch(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE task_search USING fts4(name, description)");
+            db.execSQL("INSERT INTO task_search (docid, name, description) SELECT _id, name, description FROM tasks");
+
+            db.execSQL("CREATE TRIGGER task_search_insert "
+                    + "AFTER INSERT ON tasks "
+                    + "BEGIN "
+                    + "    DELETE FROM task_search WHERE docid = new._id;"
+                    + "    INSERT INTO task_search (docid, name, description) "
+                    + "        VALUES (new._id, new.name, new.description);"
+                    + "END");
+            db.execSQL("CREATE TRIGGER task_search_update "
+                    + "AFTER UPDATE OF name, description ON tasks "
+                    + "BEGIN "
+                    + "    UPDATE task_search SET name = new.name, description = new.description "
+                    + "        WHERE docid = new._id;"
+                    + "END");
+            db.execSQL("CREATE TRIGGER task_search_delete "
+                    + "AFTER DELETE ON tasks "
+                    + "BEGIN "
+                    + "    DELETE FROM task_search WHERE docid = old._id;"
+                    + "END");
+        }
+
+        // Keep max_range_length at least as long as the longest closed range, for the range scans in the task
+        // durations. The triggers only ever raise it; edits that shorten or remove the longest range leave it too
+        // high, which is still correct, until tightenMaxRangeLength() brings it back down.
+        private void createMaxRangeLength(SQLiteDatabase db) {
+            db.execSQL("INSERT INTO settings (name, value) SELECT '" + SETTING_MAX_RANGE_LENGTH + "', "
+                    + "ifnull(max(stop - start), 0) FROM times WHERE stop != -1");
+
+            String raise = "BEGIN "
+                    + "    UPDATE settings SET value = max(value, new.stop - new.start) "
+                    + "        WHERE name = '" + SETTING_MAX_RANGE_LENGTH + "';"
+                    + "END";
+            db.execSQL("CREATE TRIGGER max_range_length_insert "
+                    + "AFTER INSERT ON times "
+                    + "FOR EACH ROW WHEN new.stop != -1 " + raise);
+            db.execSQL("CREATE TRIGGER max_range_length_update "
+                    + "AFTER UPDATE OF start, stop ON times "
+                    + "FOR EACH ROW WHEN new.stop != -1 " + raise);
+        }
+
+        // Change log for SyncEngine. Every task and time range gets a gid naming it on all devices: this device's
+        // sync_client ID and the row ID for rows made here, or the gid a pulled row came with. Each insert, update
+        // or delete appends a log entry for the row under a new sequence number and drops its older one, so the
+        // log holds the latest version stamp of every row plus a tombstone for every deleted one until the server
+        // has it. Selection is state of this device and isn't logged. The existing history goes into the log
+        // as it stands, to go out with the first sync.
+        private void createChangeLog(SQLiteDatabase db) {
+            db.execSQL("INSERT INTO settings (name, value) VALUES ('" + SETTING_SYNC_CLIENT + "', abs(random() / 2))");
+            db.execSQL("INSERT INTO settings (name, value) VALUES ('" + SETTING_SYNC_APPLYING + "', 0)");
+            db.execSQL("INSERT INTO settings (name, value) VALUES ('" + SETTING_SYNC_PUSHED + "', 0)");
+            db.execSQL("INSERT INTO settings (name, value) VALUES ('" + SETTING_SYNC_PULLED + "', 0)");
+
+            String client = "(SELECT value FROM settings WHERE name = '" + SETTING_SYNC_CLIENT + "')";
+            for(String table : new String[] {TASKS_TABLE, TIMES_TABLE}) {
+                db.execSQL("ALTER TABLE " + table + " ADD COLUMN gid TEXT");
+                db.execSQL("UPDATE " + table + " SET gid = " + client + " || '-' || _id");
+                db.execSQL("CREATE UNIQUE INDEX " + table + "_gid ON " + table + " (gid)");
+            }
+
+            db.execSQL("CREATE TABLE changes ("
+                    + "seq        INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + "tbl        INTEGER NOT NULL,"
+                    + "gid        TEXT NOT NULL,"
+                    + "deleted    INTEGER NOT NULL DEFAULT 0,"
+                    + "UNIQUE (tbl, gid))");
+            db.execSQL("INSERT INTO changes (tbl, gid) SELECT " + SyncBatch.TASK + ", gid FROM tasks ORDER BY _id");
+            db.execSQL("INSERT INTO changes (tbl, gid) SELECT " + SyncBatch.TIME + ", gid FROM times ORDER BY _id");
+
+            createChangeLogTriggers(db, TASKS_TABLE, SyncBatch.TASK, "name, description, time_added, last_used, hidden",
+                    client);
+            createChangeLogTriggers(db, TIMES_TABLE, SyncBatch.TIME, "task_id, start, stop", client);
+        }
+
+        // The insert trigger names new rows that didn't come with a gid. Setting it doesn't fire the update trigger,
+        // which only watches the synced columns.
+        private void createChangeLogTriggers(SQLiteDatabase db, String table, int tbl, String columns,
+                                             String client) {
+            String logging = "(SELECT value FROM settings WHERE name = '" + SETTING_SYNC_APPLYING + "') = 0";
+
+            db.execSQL("CREATE TRIGGER " + table + "_log_insert "
+                    + "AFTER INSERT ON " + table + " "
+                    + "BEGIN "
+                    + "    UPDATE " + table + " SET gid = " + client + " || '-' || new._id "
+                    + "        WHERE _id = new._id AND new.gid IS NULL;"
+                    + "    INSERT OR REPLACE INTO changes (tbl, gid) "
+                    + "        SELECT " + tbl + ", gid FROM " + table + " WHERE _id = new._id AND " + logging + ";"
+                    + "END");
+            db.execSQL("CREATE TRIGGER " + table + "_log_update "
+                    + "AFTER UPDATE OF " + columns + " ON " + table + " "
+                    + "FOR EACH ROW WHEN " + logging + " "
+                    + "BEGIN "
+                    + "    INSERT OR REPLACE INTO changes (tbl, gid) VALUES (" + tbl + ", new.gid);"
+                    + "END");
+            db.execSQL("CREATE TRIGGER " + table + "_log_delete "
+                    + "AFTER DELETE ON " + table + " "
+                    + "FOR EACH ROW WHEN " + logging + " "
+                    + "BEGIN "
+                    + "    INSERT OR REPLACE INTO changes (tbl, gid, deleted) VALUES (" + tbl + ", old.gid, 1);"
+                    + "END");
         }
     }
 
@@ -199,14 +734,321 @@ public class TimeProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mDbHelper = new DbHelper(getContext());
+
+        mMaintenanceThread = new HandlerThread(TAG + " maintenance", Process.THREAD_PRIORITY_BACKGROUND);
+        mMaintenanceThread.start();
+        mMaintenance = new Handler(mMaintenanceThread.getLooper());
+
+        // Pick up anything left over from before the last shutdown or a schema upgrade
+        scheduleCompaction();
+        mMaintenance.post(mLoadIntervals);
+        mMaintenance.post(mTightenMaxRangeLength);
+
+        // The rollup files ranges under local days, which move with the time zone
+        mMaintenance.post(mCheckTaskDaysZone);
+        getContext().registerReceiver(mTimeZoneReceiver, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
         return true;
     }
 
+    private void scheduleCompaction() {
+        mMaintenance.removeCallbacks(mCompaction);
+        mMaintenance.postDelayed(mCompaction, COMPACTION_DELAY);
+    }
+
+    // Delete closed ranges shorter than the min_range_length setting. Each batch covers a fixed span of row IDs
+    // through the primary key and commits on its own, so writers from the UI only ever wait for one batch.
+    void compactShortRanges() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if(db == null) return;
+
+        long started = SystemClock.uptimeMillis();
+
+        String minLength = Long.toString(getSetting(db, SETTING_MIN_RANGE_LENGTH, 0));
+        long maxId = DatabaseUtils.longForQuery(db, "SELECT ifnull(max(_id), 0) FROM times", null);
+
+        // The cutoff is bound as text, so it has to be compared against a column: "stop - start < ?" would compare
+        // a number against text, which is always less, and drop every closed range
+        int deleted = 0;
+        for(long id = 0; id < maxId; id += COMPACTION_BATCH) {
+            deleted += db.delete(TIMES_TABLE, "_id > ? AND _id <= ? AND stop != -1 AND stop < start + ?",
+                    new String[] {Long.toString(id), Long.toString(id + COMPACTION_BATCH), minLength});
+        }
+
+        mMetrics.record("compact times", SystemClock.uptimeMillis() - started, deleted);
+
+        if(deleted > 0) {
+            Log.d(TAG, "Compacted " + deleted + " short time ranges");
+            notifyChange(TIMES_URI, TIME_LIST);
+        }
+    }
+
+    // Bring max_range_length back down to the longest closed range once per start, after edits that shortened or
+    // removed the longest one. Reads every closed range, so it's left to the maintenance thread.
+    void tightenMaxRangeLength() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if(db == null) return;
+
+        long started = SystemClock.uptimeMillis();
+        db.execSQL("UPDATE settings SET value = "
+                + "(SELECT ifnull(max(stop - start), 0) FROM times WHERE stop != -1) WHERE name = ?",
+                new Object[] {SETTING_MAX_RANGE_LENGTH});
+        mMetrics.record("tighten max range length", SystemClock.uptimeMillis() - started, 0);
+    }
+
+    // Refile the task_days rollup under the current zone's local days if it was built in another zone, at startup
+    // and when the zone changes. Until it's done, durations of days in the task list are off by the zone's shift.
+    void checkTaskDaysZone() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if(db == null) return;
+
+        long zone = TimeZone.getDefault().getID().hashCode();
+        if(getSetting(db, SETTING_TASK_DAYS_ZONE, 0) == zone) return;
+
+        long started = SystemClock.uptimeMillis();
+
+        ContentValues values = new ContentValues();
+        values.put("name", SETTING_TASK_DAYS_ZONE);
+        values.put("value", zone);
+
+        db.beginTransaction();
+        try {
+            mDbHelper.rebuildTaskDays(db);
+            db.insertWithOnConflict("settings", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        mMetrics.record("rebuild task days", SystemClock.uptimeMillis() - started, 0);
+        Log.d(TAG, "Rebuilt task days for time zone " + TimeZone.getDefault().getID());
+        notifyChange(TASKS_URI, TASK_LIST);
+    }
+
+    private static long getSetting(SQLiteDatabase db, String name, long def) {
+        Cursor c = db.rawQuery("SELECT value FROM settings WHERE name = ?", new String[] {name});
+        if(c == null) return def;
+
+        try {
+            return c.moveToFirst() ? c.getLong(0) : def;
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        long started = SystemClock.uptimeMillis();
+        Bundle result = callMethod(method, arg, extras);
+        mMetrics.record("call " + method, SystemClock.uptimeMillis() - started, 0);
+        return result;
+    }
+
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        if(METHOD_GET_SETTING.equals(method)) {
+            SQLiteDatabase db = mDbHelper.getReadableDatabase();
+            if(db == null) return null;
+
+            Bundle result = new Bundle();
+            result.putLong("value", getSetting(db, arg, 0));
+            return result;
+
+        } else if(METHOD_SET_SETTING.equals(method)) {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            if(db == null || extras == null || !extras.containsKey("value")) return null;
+
+            // Kept by the triggers, a lower value would drop time from the task durations
+            if(SETTING_MAX_RANGE_LENGTH.equals(arg)) return null;
+            // Kept by checkTaskDaysZone()
+            if(SETTING_TASK_DAYS_ZONE.equals(arg)) return null;
+            // Kept by SyncEngine
+            if(arg != null && arg.startsWith("sync_")) return null;
+
+            ContentValues values = new ContentValues();
+            values.put("name", arg);
+            values.put("value", extras.getLong("value"));
+            db.insertWithOnConflict("settings", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+            if(SETTING_MIN_RANGE_LENGTH.equals(arg)) scheduleCompaction();
+            return null;
+
+        } else if(METHOD_GET_TOTALS.equals(method)) {
+            if(extras == null) return null;
+            return getTotals(extras.getLong("start", Long.MIN_VALUE), extras.getLong("stop", Long.MAX_VALUE),
+                    toMatchQuery(extras.getString("query")), extras.getString("selection"),
+                    extras.getStringArray("selection_args"));
+
+        } else if(METHOD_SWITCH_TASK.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong("selected", switchTask(Long.parseLong(arg)));
+            return result;
+
+        } else if(METHOD_GET_METRICS.equals(method)) {
+            if("reset".equals(arg)) mMetrics.reset();
+
+            StringWriter text = new StringWriter();
+            dump(null, new PrintWriter(text), null);
+
+            Bundle result = new Bundle();
+            result.putString("metrics", text.toString());
+            return result;
+
+        } else if(METHOD_FIND_OVERLAPS.equals(method)) {
+            if(extras == null) return null;
+
+            long[] exclude = extras.getLongArray("exclude");
+            if(exclude != null) {
+                exclude = exclude.clone();
+                Arrays.sort(exclude);
+            }
+
+            Bundle result = new Bundle();
+            result.putLongArray("overlaps", findOverlaps(extras.getLong("start", Long.MIN_VALUE),
+                    extras.getLong("stop", Long.MAX_VALUE), exclude));
+            return result;
+
+        } else if(METHOD_AUDIT_OVERLAPS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLongArray("pairs", getIntervals().findAllOverlaps(MAX_AUDIT_PAIRS));
+            return result;
+
+        } else if(METHOD_SYNC.equals(method)) {
+            return sync();
+        }
+
+        return super.call(method, arg, extras);
+    }
+
+    // Sync with the loopback server, see METHOD_SYNC. One sync at a time, so two can't push the same log entries.
+    private Bundle sync() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if(db == null) return null;
+
+        long started = SystemClock.uptimeMillis();
+        LoopbackSyncServer server = LoopbackSyncServer.get();
+        SyncEngine engine = new SyncEngine(db, server);
+        boolean converged;
+        synchronized(mSyncLock) {
+            try {
+                engine.sync();
+            } catch(IOException e) {
+                Log.e(TAG, "Sync failed", e);
+                return null;
+            }
+            converged = engine.digest().equals(server.digest());
+        }
+
+        if(engine.getPulled() > 0) {
+            scheduleCompaction();
+            notifyChange(TASKS_URI, TASK_LIST);
+        }
+
+        mLastSync = "pushed " + engine.getPushed() + ", pulled " + engine.getPulled() + ", sent "
+                + engine.getBytesSent() + " bytes, received " + engine.getBytesReceived() + " bytes, "
+                + server.size() + " rows on the server, " + (converged ? "converged" : "NOT converged") + " in "
+                + (SystemClock.uptimeMillis() - started) + "ms";
+        Log.d(TAG, "Sync " + mLastSync);
+
+        Bundle result = new Bundle();
+        result.putInt("pushed", engine.getPushed());
+        result.putInt("pulled", engine.getPulled());
+        result.putLong("bytes_sent", engine.getBytesSent());
+        result.putLong("bytes_received", engine.getBytesReceived());
+        result.putBoolean("converged", converged);
+        return result;
+    }
+
+    // Totals over the tasks a task list query with the same range and selection returns, from one pass over the
+    // task durations instead of the full list rows. Shares the task list's result cache, so repeat calls with
+    // nothing written in between don't reach the database:
+    //   "total"       sum of the durations
+    //   "running"     open ranges counted in the total
+    //   "count"       tasks matched
+    //   "selected"    selected task among them, or -1
+    //   "task_ids", "task_durations"  tasks with time logged in the range and their durations
+    static final String[] TOTALS_PROJECTION = {"_id", "duration", "running", "selected"};
+
+    private Bundle getTotals(long start, long stop, String match, String selection, String[] selectionArgs) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        if(db == null) return null;
+
+        TaskResult rows = queryTasks(db, TASK_LIST, TOTALS_PROJECTION, selection, selectionArgs, null, start, stop,
+                null, match, null);
+        if(rows == null) return null;
+        Cursor c = rows.toCursor(TOTALS_PROJECTION, System.currentTimeMillis());
+
+        long total = 0, running = 0, selected = -1;
+        long[] ids = new long[16], durations = new long[16];
+        int count = 0, logged = 0;
+        try {
+            while(c.moveToNext()) {
+                long duration = c.getLong(1);
+                total += duration;
+                running += c.getLong(2);
+                if(c.getInt(3) != 0) selected = c.getLong(0);
+                count++;
+
+                if(duration == 0) continue;
+                if(logged == ids.length) {
+                    ids = Arrays.copyOf(ids, logged * 2);
+                    durations = Arrays.copyOf(durations, logged * 2);
+                }
+                ids[logged] = c.getLong(0);
+                durations[logged] = duration;
+                logged++;
+            }
+        } finally {
+            c.close();
+        }
+
+        Bundle result = new Bundle();
+        result.putLong("total", total);
+        result.putLong("running", running);
+        result.putInt("count", count);
+        result.putLong("selected", selected);
+        result.putLongArray("task_ids", Arrays.copyOf(ids, logged));
+        result.putLongArray("task_durations", Arrays.copyOf(durations, logged));
+        return result;
+    }
+
+    // Deselect the running task and select the new one in one transaction, so the triggers close the old range and
+    // open the new one together and the lists reload once. Returns the selected task, or -1 if the task was
+    // already running and has been stopped.
+    private long switchTask(long taskId) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if(db == null) return -1;
+
+        String[] args = new String[] {Long.toString(taskId)};
+        long selected = -1;
+
+        boolean successful = false;
+        beginBatch(db);
+        try {
+            boolean wasSelected = DatabaseUtils.longForQuery(db,
+                    "SELECT count(*) FROM tasks WHERE _id = ? AND selected = 1", args) != 0;
+            long[] days = getSelectionDays(db);
+
+            ContentValues values = new ContentValues();
+            values.put("selected", 0);
+            db.update(TASKS_TABLE, values, "selected = 1", null);
+
+            if(!wasSelected) {
+                values.put("selected", 1);
+                if(db.update(TASKS_TABLE, values, "_id = ?", args) > 0) selected = taskId;
+            }
+
+            notifyChange(TASK_SELECTION_URI, TASK_LIST, days);
+            successful = true;
+        } finally {
+            endBatch(db, successful);
+        }
+        return selected;
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        long started = SystemClock.uptimeMillis();
         int uriType = URI_MATCHER.match(uri);
         SQLiteDatabase db = mDbHelper.getReadableDatabase();
-        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
 
         if(db == null) return null;
 
@@ -214,32 +1056,289 @@ public class TimeProvider extends ContentProvider {
             throw new IllegalArgumentException("Unsupported URI: " + uri);
         }
 
-        // Pick correct table
-        builder.setTables(URI_TYPE_TABLE.get(uriType));
+        if(uriType == EXPORT) return queryExport(uri, projection);
 
-        // Set projection
-        builder.setProjectionMap(URI_TYPE_PROJECTION.get(uriType));
+        // tasks/search?q=<words> lists the tasks with a word in the name or description starting with each of the
+        // given ones, otherwise it's the same as the task list
+        String match = uriType == TASK_SEARCH ? toMatchQuery(uri.getQueryParameter("q")) : null;
+
+        boolean times = uriType == TIME_LIST || uriType == TIME_ID;
+        if(projection == null) projection = times ? TIME_COLUMNS : TASK_COLUMNS;
 
+        // Task durations over ?start=<ms>&stop=<ms>, all time by default
         String start = uri.getQueryParameter("start");
         String stop  = uri.getQueryParameter("stop");
-        if((uriType == TASK_LIST || uriType == TASK_ID) && start != null && stop != null) {
-            HashMap<String, String> newMap = new HashMap<String, String>(TASK_PROJECTION);
-            newMap.put("duration", buildTaskDurationCol(Long.parseLong(start), Long.parseLong(stop)));
-            builder.setProjectionMap(newMap);
-        }
+        long rangeStart = !times && start != null && stop != null ? Long.parseLong(start) : Long.MIN_VALUE;
+        long rangeStop  = !times && start != null && stop != null ? Long.parseLong(stop) : Long.MAX_VALUE;
+
+        // Keyset pagination over the start index: times?before=<start>&limit=N pages back through history, and
+        // after=<start> closes a page off at the first row of the next one
+        String before = uriType == TIME_LIST ? uri.getQueryParameter("before") : null;
+        String after  = uriType == TIME_LIST ? uri.getQueryParameter("after") : null;
+        if(before != null) before = Long.toString(Long.parseLong(before));
+        if(after != null) after = Long.toString(Long.parseLong(after));
+
+        String limit = uri.getQueryParameter("limit");
+        if(limit != null) limit = Integer.toString(Integer.parseInt(limit));
 
-        // Append ID search clause if applicable
-        if(uriType == TIME_ID) builder.appendWhere("times._id=" + uri.getLastPathSegment());
-        if(uriType == TASK_ID) builder.appendWhere("tasks._id=" + uri.getLastPathSegment());
+        String id = uriType == TIME_ID || uriType == TASK_ID ? uri.getLastPathSegment() : null;
 
-        Cursor c = builder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        String sql;
+        Cursor c;
+        if(times) {
+            sql = getQueryTemplate(db, uriType, projection, selection, sortOrder, id != null, false, before != null,
+                    after != null, limit);
+            c = db.rawQuery(sql, buildQueryArgs(uriType, projection, 0, 0, System.currentTimeMillis(), id, null,
+                    before, after, selectionArgs));
+        } else {
+            TaskResult result = queryTasks(db, uriType, projection, selection, selectionArgs, sortOrder, rangeStart,
+                    rangeStop, id, match, limit);
+            sql = result != null ? result.sql : null;
+            c = result != null ? result.toCursor(projection, System.currentTimeMillis()) : null;
+        }
         if(c != null && getContext() != null) {
             c.setNotificationUri(getContext().getContentResolver(), uri);
         }
 
+        // Counting runs the query, so the time covers filling the first cursor window
+        int rows = c != null ? c.getCount() : 0;
+        mMetrics.recordQuery("query " + getUriName(uriType), SystemClock.uptimeMillis() - started, rows, sql);
         return c;
     }
 
+    // Task list rows read at one "now" and data version, kept in mTaskResults until a write moves the version on
+    // or the time reaches runningUntil. Only the open ranges of running tasks depend on the time, and while now is
+    // inside the window each adds the time since to its task's duration, so a later read moves a duration on by
+    // its task's running count times the time since. Crossing either end of the window changes which open ranges
+    // grow, so the rows are read again then.
+    static private class TaskResult {
+        final String sql;
+        final long version;
+        final long now;
+        final long runningUntil;
+        final String[] columns;
+        final Object[][] rows;
+
+        TaskResult(String sql, long version, long now, long runningUntil, Cursor c) {
+            this.sql = sql;
+            this.version = version;
+            this.now = now;
+            this.runningUntil = runningUntil;
+            columns = c.getColumnNames();
+
+            rows = new Object[c.getCount()][];
+            for(int i = 0; c.moveToPosition(i); i++) {
+                Object[] row = new Object[columns.length];
+                for(int col = 0; col < columns.length; col++) {
+                    switch(c.getType(col)) {
+                    case Cursor.FIELD_TYPE_NULL:    row[col] = null; break;
+                    case Cursor.FIELD_TYPE_INTEGER: row[col] = c.getLong(col); break;
+                    case Cursor.FIELD_TYPE_FLOAT:   row[col] = c.getDouble(col); break;
+                    case Cursor.FIELD_TYPE_BLOB:    row[col] = c.getBlob(col); break;
+                    default:                        row[col] = c.getString(col); break;
+                    }
+                }
+                rows[i] = row;
+            }
+        }
+
+        // The requested columns as of now. They're the first ones read, in the same order.
+        Cursor toCursor(String[] projection, long now) {
+            int durationPos = Arrays.asList(projection).indexOf("duration");
+            int runningCol = Arrays.asList(columns).indexOf("running");
+            long elapsed = Math.min(now, runningUntil) - this.now;
+
+            MatrixCursor c = new MatrixCursor(projection, rows.length);
+            for(Object[] row : rows) {
+                Object[] values = Arrays.copyOf(row, projection.length);
+
+                long running = runningCol != -1 ? (Long)row[runningCol] : 0;
+                if(durationPos != -1 && running != 0) {
+                    values[durationPos] = ((Number)values[durationPos]).doubleValue() + running * elapsed;
+                }
+                c.addRow(values);
+            }
+            return c;
+        }
+    }
+
+    // Task list rows for a query, from mTaskResults if nothing has been written since they were read. The
+    // running column is read along with the duration even if it wasn't asked for, to move durations on with.
+    private TaskResult queryTasks(SQLiteDatabase db, int uriType, String[] projection, String selection,
+                                  String[] selectionArgs, String sortOrder, long start, long stop, String id,
+                                  String match, String limit) {
+        List<String> columns = Arrays.asList(projection);
+        String[] sqlProjection = projection;
+        if(columns.contains("duration") && !columns.contains("running")) {
+            sqlProjection = Arrays.copyOf(projection, projection.length + 1);
+            sqlProjection[projection.length] = "running";
+        }
+
+        String sql = getQueryTemplate(db, uriType, sqlProjection, selection, sortOrder, id != null, match != null,
+                false, false, limit);
+
+        // Keyed by the statement and its arguments, less the time
+        String key = sql + '\0' + TextUtils.join("\0", buildQueryArgs(uriType, sqlProjection, start, stop, 0, id,
+                match, null, null, selectionArgs));
+
+        // Read the version first: a write landing during the query leaves the result already out of date
+        long version = sDataVersion.get();
+        TaskResult result = mTaskResults.get(key);
+        if(result != null && result.version == version && System.currentTimeMillis() < result.runningUntil) {
+            mMetrics.record("cache hit " + getUriName(uriType), 0, result.rows.length);
+            return result;
+        }
+
+        long now = System.currentTimeMillis();
+        Cursor c = db.rawQuery(sql, buildQueryArgs(uriType, sqlProjection, start, stop, now, id, match, null, null,
+                selectionArgs));
+        if(c == null) return null;
+
+        try {
+            result = new TaskResult(sql, version, now, getRunningUntil(start, stop, now), c);
+        } finally {
+            c.close();
+        }
+        mTaskResults.put(key, result);
+        return result;
+    }
+
+    // SQL for a query shape, built once. Everything that varies between calls of the same shape (the task range,
+    // row ID, search words and page bounds) is bound as a parameter, so repeat queries reuse the statement SQLite
+    // already prepared for the text. Debug builds check the plan of each new shape.
+    String getQueryTemplate(SQLiteDatabase db, int uriType, String[] projection, String selection,
+                                    String sortOrder, boolean id, boolean search, boolean before, boolean after,
+                                    String limit) {
+        StringBuilder key = new StringBuilder();
+        key.append(uriType).append(id ? 'i' : '-').append(search ? 's' : '-');
+        key.append(before ? 'b' : '-').append(after ? 'a' : '-');
+        key.append('|').append(limit).append('|').append(sortOrder).append('|').append(selection);
+        for(String col : projection) key.append('|').append(col);
+
+        String keyText = key.toString();
+        String sql = mQueryTemplates.get(keyText);
+        if(sql != null) return sql;
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(URI_TYPE_TABLE.get(uriType));
+        builder.setProjectionMap(URI_TYPE_PROJECTION.get(uriType));
+
+        // Only join the task onto time ranges for its name or description. The time list gets those from
+        // TaskCatalog instead.
+        boolean times = uriType == TIME_LIST || uriType == TIME_ID;
+        if(times && !usesTaskColumns(projection, selection, sortOrder)) builder.setTables(TIMES_TABLE);
+        if(id) builder.appendWhere(times ? "times._id = ?" : "tasks._id = ?");
+        if(search) builder.appendWhere("tasks._id IN (SELECT docid FROM task_search WHERE task_search MATCH ?)");
+        if(before) builder.appendWhere("times.start < ?");
+        if(after) {
+            if(before) builder.appendWhere(" AND ");
+            builder.appendWhere("times.start >= ?");
+        }
+
+        sql = builder.buildQuery(projection, selection, null, null, sortOrder, limit);
+        if(BuildConfig.DEBUG) warnFullScan(db, sql, null);
+
+        mQueryTemplates.put(keyText, sql);
+        return sql;
+    }
+
+    // Whether a time query reads the task columns joined in by TIMES_TABLE_MORE
+    private static boolean usesTaskColumns(String[] projection, String selection, String sortOrder) {
+        for(String col : projection) {
+            if(col.equals("name") || col.equals("description")) return true;
+        }
+        String clauses = (selection + " " + sortOrder).toLowerCase(Locale.US);
+        return clauses.contains("tasks.") || clauses.contains("name") || clauses.contains("description");
+    }
+
+    // Arguments for a query template: the task range columns, the where clause the template adds and then the
+    // caller's selection arguments
+    private static String[] buildQueryArgs(int uriType, String[] projection, long start, long stop, long now,
+                                           String id, String match, String before, String after,
+                                           String[] selectionArgs) {
+        ArrayList<String> args = new ArrayList<String>();
+        if(uriType == TASK_LIST || uriType == TASK_ID || uriType == TASK_SEARCH) {
+            addTaskArgs(args, projection, start, stop, now);
+        } else {
+            // A running range's duration
+            for(String col : projection) {
+                if(col.equals("duration")) args.add(Long.toString(now));
+            }
+        }
+        if(id != null) args.add(id);
+        if(match != null) args.add(match);
+        if(before != null) args.add(before);
+        if(after != null) args.add(after);
+        if(selectionArgs != null) Collections.addAll(args, selectionArgs);
+        return args.toArray(new String[args.size()]);
+    }
+
+    // Full-text query for what the user typed: every word has to start a word of the task, e.g. "cli mee" turns
+    // into "cli*" "mee*". Words are split the way the index tokenizes text and quoted so they can't be read as
+    // operators. Null if there's nothing to search for.
+    static String toMatchQuery(String q) {
+        if(q == null) return null;
+
+        StringBuilder match = new StringBuilder();
+        for(String word : q.split("[^\\p{L}\\p{N}]+")) {
+            if(word.length() == 0) continue;
+            if(match.length() > 0) match.append(' ');
+            match.append('"').append(word).append("*\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    public static long getDataVersion() {
+        return sDataVersion.get();
+    }
+
+    // Name of a URI type for metrics
+    static String getUriName(int uriType) {
+        switch(uriType) {
+        case TIME_LIST: return "times";
+        case TIME_ID:   return "times/#";
+        case TASK_LIST: return "tasks";
+        case TASK_ID:   return "tasks/#";
+        case TASK_SEARCH: return "tasks/search";
+        case EXPORT:    return "export/*";
+        default:        return "uri type " + uriType;
+        }
+    }
+
+    // Provider metrics, along with the UI timings kept in the same process. Also shown by MetricsActivity.
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(writer);
+        if(mLastSync != null) writer.println("Last sync: " + mLastSync);
+        writer.flush();
+    }
+
+    // Log a query that has to walk the whole times table instead of using an index. QueryPlanTest asserts on the
+    // query shapes the app uses; here it's only a hint for new ones.
+    static void warnFullScan(SQLiteDatabase db, String sql, String[] selectionArgs) {
+        String scan = findFullScan(db, sql, selectionArgs);
+        if(scan != null) Log.w(TAG, "Full table scan (" + scan + ") in query: " + sql);
+    }
+
+    // The step of a query's plan reading all of times or task_days without an index, or null if there's none
+    static String findFullScan(SQLiteDatabase db, String sql, String[] selectionArgs) {
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        if(plan == null) return null;
+
+        try {
+            int detailCol = plan.getColumnIndex("detail");
+            for(plan.moveToFirst(); !plan.isAfterLast(); plan.moveToNext()) {
+                String detail = plan.getString(detailCol);
+                if(detail.matches("SCAN (TABLE )?(times|task_days)\\b.*") && !detail.contains(" USING ")) {
+                    return detail;
+                }
+            }
+        } finally {
+            plan.close();
+        }
+        return null;
+    }
+
     @Override
     public String getType(Uri uri) {
         switch(URI_MATCHER.match(uri)) {
@@ -247,16 +1346,434 @@ public class TimeProvider extends ContentProvider {
             case TIME_ID:      return ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + TIME_TYPE;
             case TASK_LIST: return ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + TASK_TYPE;
             case TASK_ID:   return ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + TASK_TYPE;
+            case TASK_SEARCH: return ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + TASK_TYPE;
+            case EXPORT:    return TimeExporter.getType(uri);
             default:
                 throw new IllegalArgumentException("Unsupported URI: " + uri);
         }
     }
 
+    // Import time ranges from CSV in chunked transactions on the calling thread, see CsvImporter. The lists are
+    // notified once at the end rather than per row. Only callable in process, through getLocalContentProvider().
+    public CsvImporter importCsv(Reader in, CsvImporter.ProgressListener listener) throws IOException {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if(db == null) throw new IOException("Database unavailable");
+
+        long started = SystemClock.uptimeMillis();
+        CsvImporter importer = new CsvImporter(db);
+        try {
+            importer.run(in, listener);
+        } finally {
+            mMetrics.record("import times", SystemClock.uptimeMillis() - started, importer.getImported());
+
+            // Committed chunks stay even if the import failed part way
+            if(importer.getImported() > 0) {
+                notifyChange(TIMES_URI, TIME_LIST);
+                scheduleCompaction();
+            }
+        }
+        return importer;
+    }
+
+    // Exports are written by a background thread into a pipe as they're read
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if(URI_MATCHER.match(uri) != EXPORT || !"r".equals(mode)) {
+            throw new FileNotFoundException("Unsupported URI: " + uri + " (" + mode + ")");
+        }
+
+        String type = TimeExporter.getType(uri);
+        if(type == null) throw new FileNotFoundException("Unsupported export format: " + uri);
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        if(db == null) throw new FileNotFoundException("Database unavailable");
+
+        return openPipeHelper(uri, type, null, db, new TimeExporter());
+    }
+
+    // Apps receiving an export ask for its name. The size isn't known until it's written.
+    private Cursor queryExport(Uri uri, String[] projection) {
+        if(projection == null) projection = new String[] {OpenableColumns.DISPLAY_NAME};
+
+        MatrixCursor c = new MatrixCursor(projection, 1);
+        Object[] row = new Object[projection.length];
+        for(int i = 0; i < projection.length; i++) {
+            if(OpenableColumns.DISPLAY_NAME.equals(projection[i])) row[i] = uri.getLastPathSegment();
+        }
+        c.addRow(row);
+        return c;
+    }
+
+    // Change notifications name the local epoch days they touch as a descendant of the changed URI, e.g.
+    // times/days/<first>/<last> or tasks/<id>/days/<first>/<last>. Observers registered for descendants of the list
+    // URIs get every change and can skip the ones outside their date window with touchesDays().
+    public static Uri withDays(Uri uri, long firstDay, long lastDay) {
+        return uri.buildUpon().clearQuery()
+                .appendPath("days").appendPath(Long.toString(firstDay)).appendPath(Long.toString(lastDay)).build();
+    }
+
+    // Whether a change notified on a URI may touch any day from firstDay to lastDay. A change without days
+    // (a rename, an import, a pre-Jelly Bean null URI) may touch any.
+    public static boolean touchesDays(Uri changed, long firstDay, long lastDay) {
+        if(changed == null) return true;
+
+        List<String> segments = changed.getPathSegments();
+        int i = segments.lastIndexOf("days");
+        if(i == -1 || i + 2 >= segments.size()) return true;
+
+        try {
+            long first = Long.parseLong(segments.get(i + 1));
+            long last  = Long.parseLong(segments.get(i + 2));
+            return first <= lastDay && last >= firstDay;
+        } catch(NumberFormatException e) {
+            return true;
+        }
+    }
+
+    // Days covered by the time ranges matching a selection, with an open range running up to today, or null if
+    // there are none
+    private static long[] getTimesDays(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.query(TIMES_TABLE, new String[] {"min(start)", "max(stop)", "min(stop)"}, where, whereArgs,
+                null, null, null);
+        if(c == null) return ALL_DAYS;
+
+        try {
+            if(!c.moveToFirst() || c.isNull(0)) return null;
+
+            long last = c.getLong(2) == -1 ? Util.getTodayEpochDay() : Util.toEpochDay(c.getLong(1));
+            return new long[] {Util.toEpochDay(c.getLong(0)), last};
+        } finally {
+            c.close();
+        }
+    }
+
+    // Days a selection change reaches through the triggers: the open range being closed up to the new one
+    // starting today
+    private static long[] getSelectionDays(SQLiteDatabase db) {
+        long[] open = getTimesDays(db, "stop = -1", null);
+        long today = Util.getTodayEpochDay();
+        return open == null ? new long[] {today, today} : unionDays(open, new long[] {today, today});
+    }
+
+    // Widen a day span to the start and stop being written, either of which may be missing
+    private static long[] addValueDays(long[] days, ContentValues values) {
+        Long start = values.getAsLong("start");
+        Long stop  = values.getAsLong("stop");
+        if(start != null) days = unionDays(days, new long[] {Util.toEpochDay(start), Util.toEpochDay(start)});
+        if(stop != null) {
+            long day = stop == -1 ? Util.getTodayEpochDay() : Util.toEpochDay(stop);
+            days = unionDays(days, new long[] {day, day});
+        }
+        return days;
+    }
+
+    // A task update that only starts or stops tasks
+    private static boolean isSelectionChange(ContentValues values) {
+        for(String key : values.keySet()) {
+            if(!key.equals("selected") && !key.equals("last_used")) return false;
+        }
+        return values.size() > 0;
+    }
+
+    private static long[] unionDays(long[] a, long[] b) {
+        if(a == null) return b;
+        if(b == null) return a;
+        return new long[] {Math.min(a[0], b[0]), Math.max(a[1], b[1])};
+    }
+
+    // Task durations are derived from the times table, and task selection changes fan out into times through the
+    // triggers, so a change to either table is a change to both lists. days is the span of time ranges the change
+    // touched, directly or through the triggers. A changed task row shows on every day, whatever its ranges.
+    private void notifyChange(Uri uri, int uriType) {
+        notifyChange(uri, uriType, ALL_DAYS);
+    }
+
+    private void notifyChange(Uri uri, int uriType, long[] days) {
+        boolean times = uriType == TIME_LIST || uriType == TIME_ID;
+        Uri related = times ? TASKS_URI : TIMES_URI;
+        if(days == null) days = ALL_DAYS;
+        long[] uriDays = times ? days : ALL_DAYS;
+
+        // Inside a batch, merge notifications per URI and send them once the transaction commits
+        Batch batch = mBatch.get();
+        if(batch != null) {
+            batch.notifications.put(uri, unionDays(batch.notifications.get(uri), uriDays));
+            batch.notifications.put(related, unionDays(batch.notifications.get(related), days));
+            batch.timesDays = unionDays(batch.timesDays, days);
+            return;
+        }
+
+        sDataVersion.incrementAndGet();
+        refreshIntervals(days);
+        Timeline.onTimesChanged(days);
+        sendChange(uri, uriDays);
+        sendChange(related, days);
+    }
+
+    private void sendChange(Uri uri, long[] days) {
+        if(getContext() == null) return;
+
+        if(days[0] != Long.MIN_VALUE || days[1] != Long.MAX_VALUE) uri = withDays(uri, days[0], days[1]);
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    private void beginBatch(SQLiteDatabase db) {
+        mBatch.set(new Batch());
+        db.beginTransaction();
+    }
+
+    private void endBatch(SQLiteDatabase db, boolean successful) {
+        if(successful) db.setTransactionSuccessful();
+        db.endTransaction();
+
+        Batch batch = mBatch.get();
+        mBatch.remove();
+        if(!successful) return;
+
+        sDataVersion.incrementAndGet();
+        refreshIntervals(batch.timesDays);
+        Timeline.onTimesChanged(batch.timesDays);
+        for(Map.Entry<Uri, long[]> entry : batch.notifications.entrySet()) {
+            sendChange(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // The interval index, loading it from the times table first if it isn't yet
+    private IntervalIndex getIntervals() {
+        synchronized(mIntervals) {
+            if(!mIntervalsLoaded) {
+                long started = SystemClock.uptimeMillis();
+                mIntervals.clear();
+                int loaded = loadIntervals(Long.MIN_VALUE, Long.MAX_VALUE);
+                mIntervalsLoaded = true;
+                mMetrics.record("load intervals", SystemClock.uptimeMillis() - started, loaded);
+            }
+            return mIntervals;
+        }
+    }
+
+    // Bring the interval index up to date with a committed change to the time ranges on the given days. Every
+    // range reaching into those days is dropped and read back, which picks up rows moved in or out of them too,
+    // since the span covers both where a changed range was and where it went. Changes that could reach any day
+    // reload the whole index in the background.
+    private void refreshIntervals(long[] days) {
+        if(days == null) return;
+
+        synchronized(mIntervals) {
+            if(!mIntervalsLoaded) return;  // The pending load sees the change
+
+            if(days[0] == Long.MIN_VALUE || days[1] == Long.MAX_VALUE) {
+                mIntervalsLoaded = false;
+                mMaintenance.post(mLoadIntervals);
+                return;
+            }
+
+            long a = Util.getStartOfDayMs(days[0]), b = Util.getStartOfDayMs(days[1] + 1);
+            long[] stale = mIntervals.findOverlaps(a - 1, b);
+            for(int i = 0; i < stale.length; i += 3) mIntervals.remove(stale[i], stale[i + 1]);
+            loadIntervals(a, b);
+        }
+    }
+
+    // Add the non-empty ranges ending at or after a and starting before b to the index, open ones running forever
+    private int loadIntervals(long a, long b) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        if(db == null) return 0;
+
+        Cursor c = db.rawQuery("SELECT _id, start, stop FROM times WHERE (stop >= ? OR stop = -1) AND start < ? " +
+                "AND stop != start", new String[] {Long.toString(a), Long.toString(b)});
+        if(c == null) return 0;
+
+        try {
+            while(c.moveToNext()) {
+                long stop = c.getLong(2);
+                mIntervals.add(c.getLong(0), c.getLong(1), stop == -1 ? Long.MAX_VALUE : stop);
+            }
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    // Time ranges overlapping [start, stop) other than the excluded ones, as (id, start, stop) triples in start
+    // order with a stop of -1 for open ranges
+    private long[] findOverlaps(long start, long stop, long[] exclude) {
+        long[] found = getIntervals().findOverlaps(start, stop);
+
+        long[] overlaps = new long[found.length];
+        int length = 0;
+        for(int i = 0; i < found.length; i += 3) {
+            if(exclude != null && Arrays.binarySearch(exclude, found[i]) >= 0) continue;
+            overlaps[length++] = found[i];
+            overlaps[length++] = found[i + 1];
+            overlaps[length++] = found[i + 2] == Long.MAX_VALUE ? -1 : found[i + 2];
+        }
+        return Arrays.copyOf(overlaps, length);
+    }
+
+    // Find the time ranges overlapping [start, stop) other than the excluded ones, see METHOD_FIND_OVERLAPS. Reads
+    // the in-memory index, so it's quick enough to call while editing.
+    public static long[] findOverlaps(ContentResolver resolver, long start, long stop, long... exclude) {
+        Bundle extras = new Bundle();
+        extras.putLong("start", start);
+        extras.putLong("stop", stop);
+        extras.putLongArray("exclude", exclude);
+
+        Bundle result = resolver.call(TIMES_URI, METHOD_FIND_OVERLAPS, null, extras);
+        return result != null ? result.getLongArray("overlaps") : new long[0];
+    }
+
+    // Apply all operations in one transaction, so a multi-step edit like a split or join is written (and synced
+    // to disk) as a unit and reloads the lists once
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if(db == null) return new ContentProviderResult[0];
+
+        long started = SystemClock.uptimeMillis();
+        boolean successful = false;
+        beginBatch(db);
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            successful = true;
+            return results;
+        } finally {
+            endBatch(db, successful);
+            mMetrics.record("batch", SystemClock.uptimeMillis() - started, operations.size());
+        }
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if(db == null) return 0;
+
+        long started = SystemClock.uptimeMillis();
+        boolean successful = false;
+        beginBatch(db);
+        try {
+            for(ContentValues v : values) insert(uri, v);
+            successful = true;
+            return values.length;
+        } finally {
+            endBatch(db, successful);
+            mMetrics.record("bulk_insert " + getUriName(URI_MATCHER.match(uri)), SystemClock.uptimeMillis() - started,
+                    values.length);
+        }
+    }
+
+    // Selection for a list or item URI. The row ID is bound rather than pasted in, so the statement text is the
+    // same for every row.
+    private static String buildWhere(String selection, String id) {
+        if(id == null) return selection;
+        return TextUtils.isEmpty(selection) ? "_id = ?" : "(" + selection + ") AND _id = ?";
+    }
+
+    private static String[] buildWhereArgs(String[] selectionArgs, String id) {
+        if(id == null) return selectionArgs;
+        if(selectionArgs == null) return new String[] {id};
+
+        String[] args = Arrays.copyOf(selectionArgs, selectionArgs.length + 1);
+        args[selectionArgs.length] = id;
+        return args;
+    }
+
+    // Compiled write statement for some SQL, kept per thread since a statement's bindings can't be shared
+    private SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+        HashMap<String, SQLiteStatement> statements = mStatements.get();
+        if(statements == null) {
+            statements = new HashMap<String, SQLiteStatement>();
+            mStatements.set(statements);
+        }
+
+        SQLiteStatement statement = statements.get(sql);
+        if(statement == null) {
+            // Only a handful of column sets are ever written, so this is a safety net rather than a cache policy
+            if(statements.size() >= MAX_STATEMENTS) {
+                for(SQLiteStatement s : statements.values()) s.close();
+                statements.clear();
+            }
+
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    // Bind the values in key order from the first parameter on, returning the next free parameter index
+    private static int bindValues(SQLiteStatement statement, String[] keys, ContentValues values) {
+        int index = 1;
+        for(String key : keys) DatabaseUtils.bindObjectToProgram(statement, index++, values.get(key));
+        return index;
+    }
+
+    private static String[] getSortedKeys(ContentValues values) {
+        String[] keys = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    // INSERT OR REPLACE through a statement compiled for the set of columns written
+    private long insertRow(SQLiteDatabase db, String table, ContentValues values) {
+        if(values == null || values.size() == 0) {
+            return db.insertWithOnConflict(table, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+
+        String[] keys = getSortedKeys(values);
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ").append(table).append(" (");
+        for(int i = 0; i < keys.length; i++) sql.append(i > 0 ? ", " : "").append(keys[i]);
+        sql.append(") VALUES (");
+        for(int i = 0; i < keys.length; i++) sql.append(i > 0 ? ", ?" : "?");
+        sql.append(")");
+
+        SQLiteStatement statement = getStatement(db, sql.toString());
+        try {
+            bindValues(statement, keys, values);
+            return statement.executeInsert();
+        } catch(SQLException e) {
+            // Same as insertWithOnConflict()
+            Log.e(TAG, "Error inserting " + values, e);
+            return -1;
+        } finally {
+            statement.clearBindings();
+        }
+    }
+
+    // UPDATE ... WHERE _id = ? through a statement compiled for the set of columns written
+    private int updateRow(SQLiteDatabase db, String table, ContentValues values, String id) {
+        if(values == null || values.size() == 0) return 0;
+
+        String[] keys = getSortedKeys(values);
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        for(int i = 0; i < keys.length; i++) sql.append(i > 0 ? ", " : "").append(keys[i]).append(" = ?");
+        sql.append(" WHERE _id = ?");
+
+        SQLiteStatement statement = getStatement(db, sql.toString());
+        try {
+            statement.bindString(bindValues(statement, keys, values), id);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.clearBindings();
+        }
+    }
+
+    private int deleteRow(SQLiteDatabase db, String table, String id) {
+        SQLiteStatement statement = getStatement(db, table.equals(TIMES_TABLE) ? DELETE_TIME : DELETE_TASK);
+        try {
+            statement.bindString(1, id);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.clearBindings();
+        }
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
         if(db == null) return null;
 
+        long started = SystemClock.uptimeMillis();
         int uriType = URI_MATCHER.match(uri);
 
         String table = null;
@@ -268,12 +1785,21 @@ public class TimeProvider extends ContentProvider {
             throw new IllegalArgumentException("Unsupported URI: " + uri);
         }
 
-        long id = db.insertWithOnConflict(table, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        // A new range without a start or stop starts now or is still running. One replacing an existing row
+        // could have been anywhere.
+        long[] days = ALL_DAYS;
+        if(uriType == TIME_LIST && !values.containsKey("_id")) {
+            long today = Util.getTodayEpochDay();
+            boolean open = !values.containsKey("start") || !values.containsKey("stop");
+            days = addValueDays(open ? new long[] {today, today} : null, values);
+        }
+
+        long id = insertRow(db, table, values);
+        if(uriType == TIME_LIST) scheduleCompaction();
 
         Uri newUri = ContentUris.withAppendedId(uri, id);
-        if(getContext() != null) {
-            getContext().getContentResolver().notifyChange(newUri, null);
-        }
+        notifyChange(newUri, uriType, days);
+        mMetrics.record("insert " + getUriName(uriType), SystemClock.uptimeMillis() - started, id != -1 ? 1 : 0);
         return newUri;
     }
 
@@ -282,6 +1808,8 @@ public class TimeProvider extends ContentProvider {
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
         if(db == null) return 0;
 
+        long started = SystemClock.uptimeMillis();
+
         int uriType = URI_MATCHER.match(uri);
         if(uriType == UriMatcher.NO_MATCH) {
             throw new IllegalArgumentException("Unsupported URI: " + uri);
@@ -295,16 +1823,16 @@ public class TimeProvider extends ContentProvider {
         }
         if(table == null) return 0;
 
-        String where = (selection == null ? "" : selection);
-        if(uriType == TIME_ID || uriType == TASK_ID) {
-            if(!TextUtils.isEmpty(where)) where += " and ";
-            where += "_id = " + uri.getLastPathSegment();
-        }
+        String id = uriType == TIME_ID || uriType == TASK_ID ? uri.getLastPathSegment() : null;
+        String where = buildWhere(selection, id);
+        String[] whereArgs = buildWhereArgs(selectionArgs, id);
 
-        int delCount = db.delete(table, where, selectionArgs);
-        if(delCount > 0 && getContext() != null) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
+        long[] days = table.equals(TIMES_TABLE) ? getTimesDays(db, where, whereArgs) : ALL_DAYS;
+
+        int delCount = selection == null && id != null ?
+                deleteRow(db, table, id) : db.delete(table, where, whereArgs);
+        if(delCount > 0) notifyChange(uri, uriType, days);
+        mMetrics.record("delete " + getUriName(uriType), SystemClock.uptimeMillis() - started, delCount);
         return delCount;
     }
 
@@ -313,6 +1841,8 @@ public class TimeProvider extends ContentProvider {
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
         if(db == null) return 0;
 
+        long started = SystemClock.uptimeMillis();
+
         int uriType = URI_MATCHER.match(uri);
         if(uriType == UriMatcher.NO_MATCH) {
             throw new IllegalArgumentException("Unsupported URI: " + uri);
@@ -326,16 +1856,24 @@ public class TimeProvider extends ContentProvider {
         }
         if(table == null) return 0;
 
-        String where = selection == null ? "" : selection;
-        if(uriType == TIME_ID || uriType == TASK_ID) {
-            if(!TextUtils.isEmpty(where)) where += " and ";
-            where += "_id = " + uri.getLastPathSegment();
-        }
+        String id = uriType == TIME_ID || uriType == TASK_ID ? uri.getLastPathSegment() : null;
+        String where = buildWhere(selection, id);
+        String[] whereArgs = buildWhereArgs(selectionArgs, id);
 
-        int updateCount = db.update(table, values, where, selectionArgs);
-        if(updateCount > 0 && getContext() != null) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        // Days the ranges cover before and after the update. Other task changes, like a rename, show up on any day.
+        boolean selectionChange = table.equals(TASKS_TABLE) && isSelectionChange(values);
+        long[] days = ALL_DAYS;
+        if(table.equals(TIMES_TABLE)) {
+            days = addValueDays(getTimesDays(db, where, whereArgs), values);
+        } else if(selectionChange) {
+            days = getSelectionDays(db);
         }
+
+        int updateCount = selection == null && id != null ?
+                updateRow(db, table, values, id) : db.update(table, values, where, whereArgs);
+        if(updateCount > 0 && table.equals(TIMES_TABLE)) scheduleCompaction();
+        if(updateCount > 0) notifyChange(selectionChange ? TASK_SELECTION_URI : uri, uriType, days);
+        mMetrics.record("update " + getUriName(uriType), SystemClock.uptimeMillis() - started, updateCount);
         return updateCount;
     }
 }
@@ -0,0 +1,182 @@
+package com.robertsebastian.timelogger;
+
+import android.content.Context;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.HashMap;
+
+// Loads a page of time ranges and turns it into display-ready rows on the loader thread, so that binding a row in
+// the time list only copies fields into views. Rows that haven't changed since the previous load are reused as-is.
+// A page only reloads for changes to ranges around its own start times. The page is cut from the shared Timeline
+// snapshot rather than queried, and task names come from the shared TaskCatalog.
+public class TimeRowsLoader extends WindowCursorLoader {
+    static final String[] PROJECTION = {"_id", "task_id", "start", "stop", "duration"};
+
+    // A time range with its labels already formatted. Rows are handed to the list as they are loaded and reused
+    // by later loads while nothing about them changes, so they're never modified once built.
+    public static class TimeRow {
+        public long id;
+        public long taskId;
+        public long start;
+        public long stop;
+        public long duration;  // As of the load for a running range
+        public long day;       // Local epoch day of the start time, for grouping under date headers
+
+        public String name;
+        public String dateText;
+        public String startText;
+        public String stopText;
+        public String durationText;  // null for a running range, which is formatted live
+
+        public boolean isRunning() {
+            return stop == -1;
+        }
+    }
+
+    // The loaded rows, also readable as a cursor over PROJECTION
+    public static class RowsCursor extends AbstractCursor {
+        private final TimeRow[] mRows;
+
+        RowsCursor(TimeRow[] rows) {
+            mRows = rows;
+        }
+
+        public TimeRow[] getRows() {
+            return mRows;
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return PROJECTION;
+        }
+
+        @Override
+        public long getLong(int column) {
+            TimeRow row = mRows[getPosition()];
+            switch(column) {
+            case 0:  return row.id;
+            case 1:  return row.taskId;
+            case 2:  return row.start;
+            case 3:  return row.stop;
+            default: return row.duration;
+            }
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int)getLong(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short)getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            return Long.toString(getLong(column));
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return false;
+        }
+    }
+
+    // Rows from the last load by ID, and the day their date labels were rendered on ("Today" changes at midnight)
+    private HashMap<Long, TimeRow> mPrevious = new HashMap<Long, TimeRow>();
+    private long mPreviousToday = 0;
+
+    // Page bounds: starts in [after, before), newest first, up to limit of them
+    private final long mAfter, mBefore;
+    private final int mLimit;
+
+    public TimeRowsLoader(Context context, Uri uri, String sortOrder) {
+        super(context, uri, PROJECTION, null, sortOrder, TimeProvider.TIMES_URI,
+                toDay(getBound(uri, "after", Long.MIN_VALUE)), toDay(getBound(uri, "before", Long.MAX_VALUE)));
+
+        mAfter  = getBound(uri, "after", Long.MIN_VALUE);
+        mBefore = getBound(uri, "before", Long.MAX_VALUE);
+        mLimit  = (int)getBound(uri, "limit", Integer.MAX_VALUE);
+    }
+
+    // Start time bound of a page from its before/after parameter
+    private static long getBound(Uri uri, String name, long def) {
+        String bound = uri.getQueryParameter(name);
+        return bound != null ? Long.parseLong(bound) : def;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        Timeline.Snapshot timeline = Timeline.get(getContext()).getSnapshot();
+        if(timeline == null) return null;
+
+        return new RowsCursor(buildRows(timeline, TaskCatalog.get(getContext()).getTasks()));
+    }
+
+    private synchronized TimeRow[] buildRows(Timeline.Snapshot timeline, TaskCatalog.Tasks tasks) {
+        // The snapshot is in start order, so the page is the last rows before the upper bound
+        int to = timeline.indexOfStart(mBefore);
+        int from = Math.max(timeline.indexOfStart(mAfter), to - mLimit);
+        long now = Util.getTimeMs();
+
+        long today = Util.getTodayEpochDay();
+        if(today != mPreviousToday) mPrevious.clear();
+
+        TimeRow[] rows = new TimeRow[to - from];
+        HashMap<Long, TimeRow> current = new HashMap<Long, TimeRow>();
+
+        for(int i = 0; i < rows.length; i++) {
+            int pos = to - 1 - i;
+            long id = timeline.getId(pos);
+            long taskId = timeline.getTaskId(pos);
+            long start = timeline.getStart(pos);
+            long stop = timeline.getStop(pos);
+            String name = tasks != null ? tasks.getName(taskId) : "";
+
+            // A running range's duration moves on with every load
+            long duration = (stop == -1 ? now : stop) - start;
+
+            TimeRow row = mPrevious.get(id);
+            if(row == null || row.taskId != taskId || row.start != start || row.stop != stop ||
+                    row.duration != duration || !row.name.equals(name)) {
+                row = new TimeRow();
+                row.id        = id;
+                row.taskId    = taskId;
+                row.start     = start;
+                row.stop      = stop;
+                row.name      = name;
+                row.day       = Util.toEpochDay(start);
+                row.dateText  = Util.formatDate(start);
+                row.startText = Util.formatTime(start);
+                row.stopText  = Util.formatTime(stop);
+                row.duration  = duration;
+                row.durationText = row.isRunning() ? null : Util.formatDuration(duration);
+            }
+
+            rows[i] = row;
+            current.put(id, row);
+        }
+
+        mPrevious = current;
+        mPreviousToday = today;
+        return rows;
+    }
+}
@@ -0,0 +1,389 @@
+package com.robertsebastian.timelogger;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Every time range in the times table held in parallel primitive arrays ordered by start, for the time list and
+// reports to read without going back to SQLite or boxing a cursor row per range. A range takes 24 bytes: its ID and
+// start, its length as an int (stop - start, with the rare range too long for one kept aside) and its task as an
+// index into a table of task IDs. Kept in step with the provider's commits: each one marks the days it touched,
+// and the next read drops the ranges starting on those days and reads them back, splicing them into a new
+// snapshot. Changes that could reach any day reload everything.
+public class Timeline {
+    public static final String TAG = Timeline.class.getSimpleName();
+
+    static final String[] PROJECTION = {"_id", "task_id", "start", "stop"};
+
+    // Day span of a change that could touch any day
+    private static final long[] ALL_DAYS = {Long.MIN_VALUE, Long.MAX_VALUE};
+
+    // Lengths of open ranges, and of ranges too long for an int: -(i + 2) is the stop in mLongStops[i]
+    private static final int OPEN = -1;
+
+    // One load of the timeline, never changed once built
+    public static class Snapshot {
+        public final long version;  // Bumped by every refresh
+
+        private final int mSize;
+        private final long[] mIds;
+        private final long[] mStarts;
+        private final int[] mLengths;
+        private final long[] mLongStops;
+        private final int[] mTaskIndexes;
+        private final long[] mTaskIds;
+        private final int[] mOpen;       // Positions of the open ranges
+        private final long mMaxLength;   // Of the closed ranges
+
+        private Snapshot(Builder b, long version) {
+            this.version = version;
+            mSize        = b.size;
+            mIds         = b.ids;
+            mStarts      = b.starts;
+            mLengths     = b.lengths;
+            mLongStops   = Arrays.copyOf(b.longStops, b.longCount);
+            mTaskIndexes = b.taskIndexes;
+            mTaskIds     = Arrays.copyOf(b.taskIds, b.taskCount);
+            mOpen        = Arrays.copyOf(b.open, b.openCount);
+            mMaxLength   = b.maxLength;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public long getId(int i) {
+            return mIds[i];
+        }
+
+        public long getStart(int i) {
+            return mStarts[i];
+        }
+
+        // Stop of a range, -1 if it's still running
+        public long getStop(int i) {
+            int length = mLengths[i];
+            if(length >= 0) return mStarts[i] + length;
+            return length == OPEN ? -1 : mLongStops[-length - 2];
+        }
+
+        public long getTaskId(int i) {
+            return mTaskIds[mTaskIndexes[i]];
+        }
+
+        public boolean isRunning(int i) {
+            return mLengths[i] == OPEN;
+        }
+
+        // Index of a range's task in getTaskIds()
+        public int getTaskIndex(int i) {
+            return mTaskIndexes[i];
+        }
+
+        // Task IDs by task index. May include tasks that no longer have any ranges.
+        public long[] getTaskIds() {
+            return mTaskIds.clone();
+        }
+
+        // Length of the longest closed range, which bounds how far before a time the ranges reaching it start
+        public long getMaxLength() {
+            return mMaxLength;
+        }
+
+        // Open ranges by position, in start order
+        public int getOpenCount() {
+            return mOpen.length;
+        }
+
+        public int getOpen(int k) {
+            return mOpen[k];
+        }
+
+        // Position of the first range starting at or after a time, size() if there's none
+        public int indexOfStart(long time) {
+            int lo = 0, hi = mSize;
+            while(lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if(mStarts[mid] < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        // Positions of the ranges overlapping [a, b) in start order, counting open ranges as running up to any
+        // time. No closed range is longer than the longest, so only the ranges starting that far before a are
+        // looked at, plus any open ranges starting before them.
+        public int[] findOverlaps(long a, long b) {
+            int from = indexOfStart(a - mMaxLength > a ? Long.MIN_VALUE : a - mMaxLength);
+            int to = indexOfStart(b);
+
+            int[] found = new int[16];
+            int count = 0;
+            for(int i = 0; i < mOpen.length && mOpen[i] < from; i++) {
+                if(count == found.length) found = Arrays.copyOf(found, count * 2);
+                found[count++] = mOpen[i];
+            }
+            for(int i = from; i < to; i++) {
+                if(!isRunning(i) && getStop(i) <= a) continue;
+                if(count == found.length) found = Arrays.copyOf(found, count * 2);
+                found[count++] = i;
+            }
+            return Arrays.copyOf(found, count);
+        }
+    }
+
+    // Ranges appended in start order into growable arrays. Starting from an earlier snapshot keeps its table of
+    // task IDs, so its task indexes can be copied across as they are.
+    static private class Builder {
+        int size = 0;
+        long[] ids, starts;
+        int[] lengths, taskIndexes;
+
+        long[] longStops = new long[4];
+        int longCount = 0;
+
+        long[] taskIds;
+        int taskCount;
+        final HashMap<Long, Integer> taskIndex = new HashMap<Long, Integer>();
+
+        int[] open = new int[4];
+        int openCount = 0;
+
+        long maxLength = 0;
+
+        Builder(int capacity, Snapshot base) {
+            capacity = Math.max(capacity, 16);
+            ids         = new long[capacity];
+            starts      = new long[capacity];
+            lengths     = new int[capacity];
+            taskIndexes = new int[capacity];
+
+            taskIds = base != null ? Arrays.copyOf(base.mTaskIds, base.mTaskIds.length + 16) : new long[16];
+            taskCount = base != null ? base.mTaskIds.length : 0;
+            for(int i = 0; i < taskCount; i++) taskIndex.put(taskIds[i], i);
+        }
+
+        private void grow(int needed) {
+            if(needed <= ids.length) return;
+
+            int capacity = Math.max(needed, ids.length * 2);
+            ids         = Arrays.copyOf(ids, capacity);
+            starts      = Arrays.copyOf(starts, capacity);
+            lengths     = Arrays.copyOf(lengths, capacity);
+            taskIndexes = Arrays.copyOf(taskIndexes, capacity);
+        }
+
+        private void setStop(int i, long start, long stop) {
+            if(stop == -1) {
+                lengths[i] = OPEN;
+                if(openCount == open.length) open = Arrays.copyOf(open, openCount * 2);
+                open[openCount++] = i;
+                return;
+            }
+
+            long length = stop - start;
+            if(length > maxLength) maxLength = length;
+            if(length >= 0 && length <= Integer.MAX_VALUE) {
+                lengths[i] = (int)length;
+            } else {
+                if(longCount == longStops.length) longStops = Arrays.copyOf(longStops, longCount * 2);
+                longStops[longCount] = stop;
+                lengths[i] = -(longCount + 2);
+                longCount++;
+            }
+        }
+
+        void add(long id, long start, long stop, long taskId) {
+            grow(size + 1);
+
+            Integer index = taskIndex.get(taskId);
+            if(index == null) {
+                index = taskCount;
+                taskIndex.put(taskId, index);
+                if(taskCount == taskIds.length) taskIds = Arrays.copyOf(taskIds, taskCount * 2);
+                taskIds[taskCount++] = taskId;
+            }
+
+            ids[size] = id;
+            starts[size] = start;
+            taskIndexes[size] = index;
+            setStop(size, start, stop);
+            size++;
+        }
+
+        // Copy positions [from, to) of the snapshot this builder started from
+        void addAll(Snapshot s, int from, int to) {
+            int count = to - from;
+            grow(size + count);
+
+            System.arraycopy(s.mIds, from, ids, size, count);
+            System.arraycopy(s.mStarts, from, starts, size, count);
+            System.arraycopy(s.mTaskIndexes, from, taskIndexes, size, count);
+            for(int i = from; i < to; i++, size++) {
+                int length = s.mLengths[i];
+                if(length >= 0) {
+                    lengths[size] = length;
+                    if(length > maxLength) maxLength = length;
+                } else {
+                    setStop(size, starts[size], s.getStop(i));
+                }
+            }
+        }
+    }
+
+    private static Timeline sInstance = null;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Days touched by commits since the snapshot was read, or null if it's up to date (guarded by this). Starts
+    // out covering everything, as nothing has been read yet.
+    private long[] mPendingDays = ALL_DAYS;
+
+    private volatile Snapshot mSnapshot = null;
+    private long mVersion = 0;  // Guarded by mLoadLock
+    private final Object mLoadLock = new Object();
+
+    // The background refresh, on the main thread only
+    private RefreshTask mRefresh = null;
+
+    static private class RefreshTask extends AsyncTask<Void, Void, Snapshot> {
+        private final Timeline mTimeline;
+
+        RefreshTask(Timeline timeline) {
+            mTimeline = timeline;
+        }
+
+        @Override
+        protected Snapshot doInBackground(Void... params) {
+            return mTimeline.getSnapshot();
+        }
+
+        @Override
+        protected void onPostExecute(Snapshot snapshot) {
+            mTimeline.mRefresh = null;
+            if(mTimeline.hasPendingChanges()) mTimeline.refresh();
+        }
+    }
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    public static synchronized Timeline get(Context context) {
+        if(sInstance == null) sInstance = new Timeline(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private Timeline(Context context) {
+        mContext = context;
+        mHandler.post(mRefreshRunnable);
+    }
+
+    // Called by TimeProvider once a change to the time ranges on local epoch days days[0] to days[1] commits, before
+    // anyone is notified, so a reload prompted by the notification sees it. Does nothing until the timeline is used.
+    static void onTimesChanged(long[] days) {
+        Timeline timeline;
+        synchronized(Timeline.class) {
+            timeline = sInstance;
+        }
+        if(timeline == null || days == null) return;
+
+        synchronized(timeline) {
+            timeline.mPendingDays = union(timeline.mPendingDays, days);
+        }
+        timeline.mHandler.post(timeline.mRefreshRunnable);
+    }
+
+    private static long[] union(long[] a, long[] b) {
+        if(a == null) return b;
+        return new long[] {Math.min(a[0], b[0]), Math.max(a[1], b[1])};
+    }
+
+    private synchronized boolean hasPendingChanges() {
+        return mPendingDays != null;
+    }
+
+    // The timeline as last read without waiting, or null if it hasn't been yet
+    public Snapshot peekSnapshot() {
+        return mSnapshot;
+    }
+
+    // The timeline up to date with every change committed so far, reading the days that changed on the calling
+    // thread if it's behind. Not for the main thread.
+    public Snapshot getSnapshot() {
+        synchronized(mLoadLock) {
+            long[] days;
+            synchronized(this) {
+                days = mPendingDays;
+                mPendingDays = null;
+            }
+            if(days == null) return mSnapshot;
+
+            long started = SystemClock.uptimeMillis();
+            Snapshot snapshot = load(mSnapshot, days);
+            if(snapshot == null) {
+                // Try again next time
+                synchronized(this) {
+                    mPendingDays = union(mPendingDays, days);
+                }
+                return mSnapshot;
+            }
+
+            Log.d(TAG, "Read " + snapshot.size() + " time ranges for days " + days[0] + " to " + days[1] + " in " +
+                    (SystemClock.uptimeMillis() - started) + "ms");
+            mSnapshot = snapshot;
+            return snapshot;
+        }
+    }
+
+    // Bring the snapshot up to date in the background, unless that's already running. It picks up anything that
+    // changed since it started on its next round.
+    private void refresh() {
+        if(mRefresh != null) return;
+
+        mRefresh = new RefreshTask(this);
+        mRefresh.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    // A new snapshot with the ranges starting on the given days read again, or everything if there's no snapshot
+    // yet or the days are open. Changes list the days of both where a range was and where it went, so every range
+    // that moved is dropped and read back.
+    private Snapshot load(Snapshot base, long[] days) {
+        boolean all = base == null || days[0] == Long.MIN_VALUE || days[1] == Long.MAX_VALUE;
+        long a = all ? Long.MIN_VALUE : Util.getStartOfDayMs(days[0]);
+        long b = all ? Long.MAX_VALUE : Util.getStartOfDayMs(days[1] + 1);
+
+        Cursor c = mContext.getContentResolver().query(TimeProvider.TIMES_URI, PROJECTION,
+                "start >= ? AND start < ?", new String[] {Long.toString(a), Long.toString(b)}, "start, _id");
+        if(c == null) return null;
+
+        Builder builder;
+        try {
+            int from = all ? 0 : base.indexOfStart(a);
+            int to   = all ? 0 : base.indexOfStart(b);
+            int kept = all ? 0 : base.size() - (to - from);
+
+            builder = new Builder(kept + c.getCount(), all ? null : base);
+            if(!all) builder.addAll(base, 0, from);
+            while(c.moveToNext()) builder.add(c.getLong(0), c.getLong(2), c.getLong(3), c.getLong(1));
+            if(!all) builder.addAll(base, to, base.size());
+        } finally {
+            c.close();
+        }
+        return new Snapshot(builder, ++mVersion);
+    }
+}
@@ -0,0 +1,146 @@
+package com.robertsebastian.timelogger;
+
+import android.app.Fragment;
+import android.app.LoaderManager;
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.content.Intent;
+import android.content.Loader;
+import android.database.ContentObserver;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+// Logged time as a chart in TimelineView, following changes to the time ranges and task names. Tapping a range
+// opens it in the editor.
+public class TimelineFragment extends Fragment implements
+        LoaderManager.LoaderCallbacks<Timeline.Snapshot>,
+        TaskCatalog.OnChangeListener,
+        TimelineView.OnRangeClickListener
+{
+    public static final String TAG = TimelineFragment.class.getSimpleName();
+
+    private TimelineView mView = null;
+
+    // Viewport kept while the view is torn down for another page, 0 to start at today
+    private long mViewStart = 0;
+    private float mMsPerPx = 0;
+
+    // Brings the shared timeline up to date off the UI thread whenever the time ranges change
+    static private class TimelineLoader extends AsyncTaskLoader<Timeline.Snapshot> {
+        private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onContentChanged();
+            }
+        };
+        private boolean mObserving = false;
+        private Timeline.Snapshot mSnapshot = null;
+
+        TimelineLoader(Context context) {
+            super(context);
+        }
+
+        @Override
+        public Timeline.Snapshot loadInBackground() {
+            return Timeline.get(getContext()).getSnapshot();
+        }
+
+        @Override
+        public void deliverResult(Timeline.Snapshot snapshot) {
+            mSnapshot = snapshot;
+            if(isStarted()) super.deliverResult(snapshot);
+        }
+
+        @Override
+        protected void onStartLoading() {
+            if(!mObserving) {
+                getContext().getContentResolver().registerContentObserver(TimeProvider.TIMES_URI, true, mObserver);
+                mObserving = true;
+            }
+
+            if(mSnapshot != null) deliverResult(mSnapshot);
+            if(takeContentChanged() || mSnapshot == null) forceLoad();
+        }
+
+        @Override
+        protected void onStopLoading() {
+            cancelLoad();
+        }
+
+        @Override
+        protected void onReset() {
+            onStopLoading();
+            mSnapshot = null;
+
+            if(mObserving) {
+                getContext().getContentResolver().unregisterContentObserver(mObserver);
+                mObserving = false;
+            }
+        }
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        super.onCreateView(inflater, container, savedInstanceState);
+
+        mView = (TimelineView)inflater.inflate(R.layout.fragment_timeline, container, false);
+        mView.setOnRangeClickListener(this);
+        if(mMsPerPx != 0) mView.setViewport(mViewStart, mMsPerPx);
+
+        TaskCatalog catalog = TaskCatalog.get(getActivity());
+        catalog.addListener(this);
+        mView.setTasks(catalog.peekTasks());
+
+        return mView;
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        assert(getLoaderManager() != null);
+
+        getLoaderManager().initLoader(0, null, this);
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+
+        mViewStart = mView.getViewStart();
+        mMsPerPx = mView.getMsPerPx();
+        TaskCatalog.get(getActivity()).removeListener(this);
+        mView = null;
+    }
+
+    @Override
+    public void onCatalogChanged(TaskCatalog.Tasks tasks) {
+        if(mView != null) mView.setTasks(tasks);
+    }
+
+    // Pass the range along so the editor can open without querying it again
+    @Override
+    public void onRangeClick(Timeline.Snapshot timeline, int position) {
+        Intent i = new Intent(getActivity(), EditTimeRangeActivity.class);
+        i.putExtra("id", timeline.getId(position));
+        i.putExtra("task_id", timeline.getTaskId(position));
+        i.putExtra("start", timeline.getStart(position));
+        i.putExtra("stop", timeline.getStop(position));
+        startActivity(i);
+    }
+
+    @Override
+    public Loader<Timeline.Snapshot> onCreateLoader(int id, Bundle args) {
+        return new TimelineLoader(getActivity());
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Timeline.Snapshot> loader, Timeline.Snapshot snapshot) {
+        if(mView != null && snapshot != null) mView.setTimeline(snapshot);
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Timeline.Snapshot> loader) {}
+}
@@ -0,0 +1,436 @@
+package com.robertsebastian.timelogger;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+import android.widget.OverScroller;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Gantt-style chart of a Timeline snapshot: a lane per task with its time ranges as bars, under an axis of hours,
+// days or weeks depending on the zoom. Pans and flings in both directions and zooms the time axis with a pinch.
+// Only the ranges inside the viewport are drawn, found by binary search on their starts, and bars closer than a
+// pixel apart are merged per lane, so a frame costs about the same with 50k ranges as with 50. Drawing allocates
+// nothing but the labels of ticks coming into view.
+public class TimelineView extends View {
+    private static final long ONE_HOUR = 3600 * 1000;
+    private static final long ONE_DAY = 24 * ONE_HOUR;
+    private static final long ONE_WEEK = 7 * ONE_DAY;
+
+    // Hour tick spacings from finest to coarsest, then days and weeks starting at local midnight
+    private static final long[] HOUR_STEPS = {ONE_HOUR, 3 * ONE_HOUR, 6 * ONE_HOUR, 12 * ONE_HOUR};
+    private static final int STEP_DAY  = HOUR_STEPS.length;
+    private static final int STEP_WEEK = STEP_DAY + 1;
+
+    // Closest zoom, in milliseconds per pixel. The farthest keeps week ticks apart.
+    private static final float MIN_MS_PER_PX = 5000;
+
+    // A running range grows on screen as often as LiveClock ticks
+    private static final long RUNNING_REDRAW = 3600;
+
+    // Recently drawn tick labels
+    private static final int LABEL_CACHE_SIZE = 64;
+
+    public interface OnRangeClickListener {
+        public void onRangeClick(Timeline.Snapshot timeline, int position);
+    }
+
+    private Timeline.Snapshot mTimeline = null;
+    private TaskCatalog.Tasks mTasks = null;
+    private OnRangeClickListener mListener = null;
+
+    // Lane of each task index in the snapshot (-1 for tasks without ranges), and each lane's name and color
+    private int[] mLanes = new int[0];
+    private String[] mLaneNames = new String[0];
+    private int[] mLaneColors = new int[0];
+
+    // Bar waiting to be drawn in each lane, merged with the next one if it starts within a pixel of its end.
+    // mPendingRight is -1 if there's none.
+    private float[] mPendingLeft = new float[0];
+    private float[] mPendingRight = new float[0];
+
+    // Viewport: the time at the left edge, the zoom (0 until the first layout) and the lanes scrolled past
+    private long mViewStart = 0;
+    private float mMsPerPx = 0;
+    private float mScrollY = 0;
+    private final float mMaxMsPerPx;
+
+    private final float mLaneHeight;
+    private final float mBarTop, mBarBottom;  // Within a lane, leaving room for its name above
+    private final float mHeaderHeight;
+    private final float mTickSpacing;
+    private final float mTextPadding;
+
+    private final Paint mBarPaint = new Paint();
+    private final Paint mGridPaint = new Paint();
+    private final Paint mDayPaint = new Paint();
+    private final Paint mHeaderPaint = new Paint();
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final long[] mLabelKeys = new long[LABEL_CACHE_SIZE];
+    private final String[] mLabels = new String[LABEL_CACHE_SIZE];
+    private int mNextLabel = 0;
+
+    private final ScaleGestureDetector mScaleDetector;
+    private final GestureDetector mGestureDetector;
+    private final OverScroller mScroller;
+    private long mFlingStart = 0;  // mViewStart when the fling started, its x offset is 0
+
+    public TimelineView(Context context) {
+        this(context, null);
+    }
+
+    public TimelineView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        Resources res = getResources();
+        mLaneHeight   = res.getDimension(R.dimen.timeline_lane_height);
+        mHeaderHeight = res.getDimension(R.dimen.timeline_header_height);
+        mTickSpacing  = res.getDimension(R.dimen.timeline_tick_spacing);
+        mTextPadding  = res.getDimension(R.dimen.standard_padding) / 2;
+        mBarTop       = mLaneHeight / 2;
+        mBarBottom    = mLaneHeight - mTextPadding;
+        mMaxMsPerPx   = ONE_WEEK / mTickSpacing;
+
+        mGridPaint.setColor(res.getColor(R.color.divider_color));
+        mDayPaint.setColor(res.getColor(R.color.timeline_day_color));
+        mHeaderPaint.setColor(res.getColor(R.color.list_header_color));
+        mTextPaint.setColor(Color.DKGRAY);
+        mTextPaint.setTextSize(res.getDimension(R.dimen.timeline_text_size));
+
+        mScroller = new OverScroller(context);
+        mScaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScaleBegin(ScaleGestureDetector detector) {
+                mScroller.forceFinished(true);
+                return true;
+            }
+
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoomAround(detector.getFocusX(), detector.getScaleFactor());
+                return true;
+            }
+        });
+
+        mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                mScroller.forceFinished(true);
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float dx, float dy) {
+                if(mScaleDetector.isInProgress()) return false;
+
+                mViewStart += (long)(dx * mMsPerPx);
+                mScrollY = clampScrollY(mScrollY + dy);
+                postInvalidateOnAnimation();
+                return true;
+            }
+
+            @Override
+            public boolean onFling(MotionEvent e1, MotionEvent e2, float vx, float vy) {
+                if(mScaleDetector.isInProgress()) return false;
+
+                mFlingStart = mViewStart;
+                mScroller.fling(0, (int)mScrollY, (int)-vx, (int)-vy, Integer.MIN_VALUE, Integer.MAX_VALUE, 0,
+                        (int)clampScrollY(Float.MAX_VALUE));
+                postInvalidateOnAnimation();
+                return true;
+            }
+
+            @Override
+            public boolean onSingleTapUp(MotionEvent e) {
+                return clickRangeAt(e.getX(), e.getY());
+            }
+        });
+    }
+
+    public void setTimeline(Timeline.Snapshot timeline) {
+        mTimeline = timeline;
+        updateLanes();
+    }
+
+    public void setTasks(TaskCatalog.Tasks tasks) {
+        mTasks = tasks;
+        updateLanes();
+    }
+
+    public void setOnRangeClickListener(OnRangeClickListener listener) {
+        mListener = listener;
+    }
+
+    public long getViewStart() {
+        return mViewStart;
+    }
+
+    public float getMsPerPx() {
+        return mMsPerPx;
+    }
+
+    public void setViewport(long viewStart, float msPerPx) {
+        mViewStart = viewStart;
+        mMsPerPx = msPerPx;
+        invalidate();
+    }
+
+    // Give every task with ranges a lane: the visible tasks in the order the pickers show them, then the rest
+    private void updateLanes() {
+        if(mTimeline == null) return;
+
+        final long[] taskIds = mTimeline.getTaskIds();
+        boolean[] used = new boolean[taskIds.length];
+        for(int i = 0; i < mTimeline.size(); i++) used[mTimeline.getTaskIndex(i)] = true;
+
+        int count = 0;
+        Integer[] order = new Integer[taskIds.length];
+        for(int index = 0; index < taskIds.length; index++) {
+            if(used[index]) order[count++] = index;
+        }
+        order = Arrays.copyOf(order, count);
+
+        final TaskCatalog.Tasks tasks = mTasks;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long pa = getLaneOrder(tasks, taskIds[a]), pb = getLaneOrder(tasks, taskIds[b]);
+                if(pa != pb) return pa < pb ? -1 : 1;
+                return taskIds[a] < taskIds[b] ? -1 : (taskIds[a] == taskIds[b] ? 0 : 1);
+            }
+        });
+
+        mLanes = new int[taskIds.length];
+        Arrays.fill(mLanes, -1);
+        mLaneNames = new String[count];
+        mLaneColors = new int[count];
+        for(int lane = 0; lane < count; lane++) {
+            long taskId = taskIds[order[lane]];
+            mLanes[order[lane]] = lane;
+            mLaneNames[lane] = tasks != null ? tasks.getName(taskId) : "";
+
+            // Colors stay with the task as lanes come and go, spread around the hue circle by the golden angle
+            mLaneColors[lane] = Color.HSVToColor(new float[] {(taskId * 137.508f) % 360, 0.5f, 0.85f});
+        }
+        mPendingLeft = new float[count];
+        mPendingRight = new float[count];
+
+        mScrollY = clampScrollY(mScrollY);
+        invalidate();
+    }
+
+    private static long getLaneOrder(TaskCatalog.Tasks tasks, long taskId) {
+        int position = tasks != null ? tasks.getPosition(taskId) : -1;
+        return position != -1 ? position : Integer.MAX_VALUE;
+    }
+
+    private float clampScrollY(float y) {
+        float max = Math.max(0, mLaneNames.length * mLaneHeight - (getHeight() - mHeaderHeight));
+        return Math.max(0, Math.min(max, y));
+    }
+
+    // Zoom the time axis by a factor, keeping the time under x in place
+    private void zoomAround(float x, float factor) {
+        long focus = mViewStart + (long)(x * mMsPerPx);
+        mMsPerPx = Math.max(MIN_MS_PER_PX, Math.min(mMaxMsPerPx, mMsPerPx / factor));
+        mViewStart = focus - (long)(x * mMsPerPx);
+        postInvalidateOnAnimation();
+    }
+
+    private float toX(long time) {
+        return (time - mViewStart) / mMsPerPx;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        // Start out showing today
+        if(mMsPerPx == 0 && w > 0) {
+            mMsPerPx = Math.max(MIN_MS_PER_PX, Math.min(mMaxMsPerPx, ONE_DAY / (float)w));
+            mViewStart = Util.getTodayMs();
+        }
+        mScrollY = clampScrollY(mScrollY);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent e) {
+        boolean handled = mScaleDetector.onTouchEvent(e);
+        handled = mGestureDetector.onTouchEvent(e) || handled;
+        return handled || super.onTouchEvent(e);
+    }
+
+    @Override
+    public void computeScroll() {
+        if(mScroller.computeScrollOffset()) {
+            mViewStart = mFlingStart + (long)(mScroller.getCurrX() * mMsPerPx);
+            mScrollY = mScroller.getCurrY();
+            postInvalidateOnAnimation();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if(mMsPerPx == 0) return;
+
+        long viewStop = mViewStart + (long)(getWidth() * mMsPerPx);
+        canvas.drawRect(0, 0, getWidth(), mHeaderHeight, mHeaderPaint);
+        drawAxis(canvas, viewStop);
+
+        if(mTimeline == null) return;
+        boolean running = drawRanges(canvas, viewStop);
+        drawLaneNames(canvas);
+
+        if(running) postInvalidateDelayed(RUNNING_REDRAW);
+    }
+
+    // Grid lines and labels at every tick across the viewport, with midnights stronger than hours
+    private void drawAxis(Canvas canvas, long viewStop) {
+        int step = STEP_WEEK;
+        for(int i = STEP_DAY; i >= 0; i--) {
+            long spacing = i == STEP_DAY ? ONE_DAY : HOUR_STEPS[i];
+            if(spacing / mMsPerPx >= mTickSpacing) step = i;
+        }
+
+        long first = Util.toEpochDay(mViewStart);
+        if(step == STEP_WEEK) first = Util.getStartOfWeek(first);
+        int days = step == STEP_WEEK ? 7 : 1;
+
+        for(long day = first; ; day += days) {
+            long dayStart = Util.getStartOfDayMs(day);
+            if(dayStart >= viewStop) break;
+
+            drawTick(canvas, dayStart, true, mDayPaint);
+            if(step >= STEP_DAY) continue;
+
+            long dayStop = Util.getStartOfDayMs(day + 1);
+            for(long time = dayStart + HOUR_STEPS[step]; time < dayStop && time < viewStop;
+                    time += HOUR_STEPS[step]) {
+                drawTick(canvas, time, false, mGridPaint);
+            }
+        }
+    }
+
+    private void drawTick(Canvas canvas, long time, boolean date, Paint paint) {
+        float x = toX(time);
+        if(x < -mTickSpacing) return;  // Label would be off screen too
+
+        canvas.drawLine(x, 0, x, getHeight(), paint);
+        canvas.drawText(getLabel(time, date), x + mTextPadding, mHeaderHeight - mTextPadding, mTextPaint);
+    }
+
+    // Label for a tick, formatted once while it stays in view
+    private String getLabel(long time, boolean date) {
+        long key = date ? ~time : time;
+        for(int i = 0; i < LABEL_CACHE_SIZE; i++) {
+            if(mLabelKeys[i] == key && mLabels[i] != null) return mLabels[i];
+        }
+
+        String label = date ? Util.formatShortDay(Util.toEpochDay(time)) : Util.formatTime(time);
+        mLabelKeys[mNextLabel] = key;
+        mLabels[mNextLabel] = label;
+        mNextLabel = (mNextLabel + 1) % LABEL_CACHE_SIZE;
+        return label;
+    }
+
+    // Bars for the ranges reaching into the viewport, in the lanes scrolled into view. True if any is running.
+    private boolean drawRanges(Canvas canvas, long viewStop) {
+        Timeline.Snapshot timeline = mTimeline;
+        long now = Util.getTimeMs();
+
+        int firstLane = Math.max(0, (int)(mScrollY / mLaneHeight));
+        int lastLane = (int)((mScrollY + getHeight() - mHeaderHeight) / mLaneHeight);
+        Arrays.fill(mPendingRight, -1);
+
+        // No closed range is longer than the longest, so none starting further back than that reaches the left edge
+        long reach = timeline.getMaxLength();
+        int from = timeline.indexOfStart(mViewStart - reach > mViewStart ? Long.MIN_VALUE : mViewStart - reach);
+        int to = timeline.indexOfStart(viewStop);
+
+        boolean running = false;
+        for(int k = 0; k < timeline.getOpenCount() && timeline.getOpen(k) < from; k++) {
+            running |= addBar(canvas, timeline, timeline.getOpen(k), now, firstLane, lastLane);
+        }
+        for(int i = from; i < to; i++) {
+            running |= addBar(canvas, timeline, i, now, firstLane, lastLane);
+        }
+
+        for(int lane = firstLane; lane <= lastLane && lane < mPendingRight.length; lane++) {
+            if(mPendingRight[lane] != -1) drawBar(canvas, lane);
+        }
+        return running;
+    }
+
+    // Add a range to its lane's pending bar, drawing that first if this one doesn't touch it
+    private boolean addBar(Canvas canvas, Timeline.Snapshot timeline, int i, long now, int firstLane,
+                           int lastLane) {
+        int lane = mLanes[timeline.getTaskIndex(i)];
+        if(lane < firstLane || lane > lastLane) return false;
+
+        boolean running = timeline.isRunning(i);
+        long stop = running ? now : timeline.getStop(i);
+        if(stop <= mViewStart) return false;
+
+        float left = Math.max(-1, toX(timeline.getStart(i)));
+        float right = Math.min(getWidth() + 1, toX(stop));
+        right = Math.max(right, left + 1);
+
+        if(mPendingRight[lane] != -1 && left <= mPendingRight[lane] + 1) {
+            mPendingRight[lane] = Math.max(mPendingRight[lane], right);
+        } else {
+            if(mPendingRight[lane] != -1) drawBar(canvas, lane);
+            mPendingLeft[lane] = left;
+            mPendingRight[lane] = right;
+        }
+        return running;
+    }
+
+    private void drawBar(Canvas canvas, int lane) {
+        float top = mHeaderHeight + lane * mLaneHeight - mScrollY;
+        mBarPaint.setColor(mLaneColors[lane]);
+        canvas.drawRect(mPendingLeft[lane], top + mBarTop, mPendingRight[lane], top + mBarBottom, mBarPaint);
+        mPendingRight[lane] = -1;
+    }
+
+    private void drawLaneNames(Canvas canvas) {
+        canvas.save();
+        canvas.clipRect(0, mHeaderHeight, getWidth(), getHeight());
+        for(int lane = 0; lane < mLaneNames.length; lane++) {
+            float top = mHeaderHeight + lane * mLaneHeight - mScrollY;
+            if(top + mLaneHeight < mHeaderHeight || top > getHeight()) continue;
+
+            canvas.drawText(mLaneNames[lane], mTextPadding, top + mBarTop - mTextPadding, mTextPaint);
+        }
+        canvas.restore();
+    }
+
+    // Report the range under a tap, within a few pixels either side
+    private boolean clickRangeAt(float x, float y) {
+        if(mTimeline == null || mListener == null || y < mHeaderHeight) return false;
+
+        int lane = (int)((y - mHeaderHeight + mScrollY) / mLaneHeight);
+        long time = mViewStart + (long)(x * mMsPerPx);
+        long slop = (long)(mTextPadding * mMsPerPx);
+        long now = Util.getTimeMs();
+
+        int[] found = mTimeline.findOverlaps(time - slop, time + slop);
+        for(int k = found.length - 1; k >= 0; k--) {
+            int i = found[k];
+            if(mLanes[mTimeline.getTaskIndex(i)] != lane) continue;
+            if(mTimeline.isRunning(i) && now <= time - slop) continue;
+
+            mListener.onRangeClick(mTimeline, i);
+            return true;
+        }
+        return false;
+    }
+}
@@ -1,13 +1,15 @@
 package com.robertsebastian.timelogger;
 
+import android.util.LruCache;
 import android.view.Menu;
 import android.view.MenuItem;
 
 import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.text.DateFormatSymbols;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
+import java.util.TimeZone;
 
 // Miscellaneous utility functions
 public class Util {
@@ -35,25 +37,12 @@ public class Util {
     }
 
     // Format a time depending on its range from the current date
-    private static final SimpleDateFormat DAY_OF_WEEK_FORMAT = new SimpleDateFormat("EEEE");
-    private static final SimpleDateFormat MONTH_DAY_FORMAT = new SimpleDateFormat("EEE, LLL d");
-    private static final SimpleDateFormat MONTH_DAY_YEAR_FORMAT = new SimpleDateFormat("EEE, LLL d, yyyy");
-
     public static String formatDate(Calendar d) {
-        Calendar now = Calendar.getInstance();
-
-        if(isSameDay(d, now)) {
-            return "Today";
-        } else if(isSameWeek(d, now)) {
-            return DAY_OF_WEEK_FORMAT.format(d.getTime());
-        } else if(isSameYear(d, now)) {
-            return MONTH_DAY_FORMAT.format(d.getTime());
-        }
-        return MONTH_DAY_YEAR_FORMAT.format(d.getTime());
+        return formatDate(d.getTimeInMillis());
     }
 
     public static String formatDate(long ms) {
-        return formatDate(newCalendar(ms));
+        return formatDay(toEpochDay(ms));
     }
 
     public static String formatDateRange(Calendar d1, Calendar d2) {
@@ -61,7 +50,46 @@ public class Util {
     }
 
     public static String formatDateRange(long ms1, long ms2) {
-        return formatDateRange(newCalendar(ms1), newCalendar(ms2));
+        return formatDate(ms1) + " - " + formatDate(ms2);
+    }
+
+    // Label for a local epoch day: "Today", the weekday name within this week, otherwise the date
+    public static String formatDay(long day) {
+        Today today = getToday();
+
+        String label = today.labels.get(day);
+        if(label == null) {
+            label = renderDay(day, today.day);
+            today.labels.put(day, label);
+        }
+        return label;
+    }
+
+    private static String renderDay(long day, long today) {
+        if(day == today) return "Today";
+
+        int dayOfWeek = getDayOfWeek(day);
+        if(getStartOfWeek(day) == getStartOfWeek(today)) return WEEKDAYS[dayOfWeek];
+
+        int date = getCivilDate(day);
+        int year = date / 10000;
+        StringBuilder b = new StringBuilder();
+        b.append(SHORT_WEEKDAYS[dayOfWeek]).append(", ")
+         .append(SHORT_MONTHS[date / 100 % 100 - 1]).append(' ')
+         .append(date % 100);
+        if(year != getCivilDate(today) / 10000) b.append(", ").append(year);
+        return b.toString();
+    }
+
+    // Short labels for report columns: "Oct 14" for a day or week, "Oct 2013" for a month
+    public static String formatShortDay(long day) {
+        int date = getCivilDate(day);
+        return SHORT_MONTHS[date / 100 % 100 - 1] + " " + date % 100;
+    }
+
+    public static String formatMonth(long day) {
+        int date = getCivilDate(day);
+        return SHORT_MONTHS[date / 100 % 100 - 1] + " " + date / 10000;
     }
 
     public static Calendar newCalendar(long ms) {
@@ -80,40 +108,250 @@ public class Util {
         return c;
     }
 
-    public static Calendar getToday() {
-        Calendar c = Calendar.getInstance();
-        c.set(Calendar.HOUR_OF_DAY, 0);
-        c.set(Calendar.MINUTE, 0);
-        c.set(Calendar.SECOND, 0);
-        c.set(Calendar.MILLISECOND, 0);
-
-        return c;
+    // Start of the current local day
+    public static long getTodayMs() {
+        return getToday().start;
     }
 
-    public static Calendar getStartOfWeek() {
-        Calendar c = getToday();
-        c.set(Calendar.DAY_OF_WEEK, c.getFirstDayOfWeek());
-
-        return c;
+    // Start of the current local week
+    public static long getStartOfWeekMs() {
+        return getStartOfDayMs(getStartOfWeek(getToday().day));
     }
 
     public static long getTimeMs() {
-        return Calendar.getInstance().getTimeInMillis();
+        return System.currentTimeMillis();
     }
 
     public static boolean isSameDay(Calendar d1, Calendar d2) {
-        return d1.get(Calendar.DAY_OF_YEAR) == d2.get(Calendar.DAY_OF_YEAR) &&
-               d1.get(Calendar.YEAR) == d2.get(Calendar.YEAR);
+        return toEpochDay(d1.getTimeInMillis()) == toEpochDay(d2.getTimeInMillis());
     }
 
     public static boolean isSameWeek(Calendar d1, Calendar d2) {
-        // FIXME: Broken for first week of year
-        return d1.get(Calendar.WEEK_OF_YEAR) == d2.get(Calendar.WEEK_OF_YEAR) &&
-               d1.get(Calendar.YEAR) == d2.get(Calendar.YEAR);
+        return getStartOfWeek(toEpochDay(d1.getTimeInMillis())) == getStartOfWeek(toEpochDay(d2.getTimeInMillis()));
     }
 
     public static boolean isSameYear(Calendar d1, Calendar d2) {
-        return d1.get(Calendar.YEAR) == d2.get(Calendar.YEAR);
+        return getCivilDate(toEpochDay(d1.getTimeInMillis())) / 10000 ==
+               getCivilDate(toEpochDay(d2.getTimeInMillis())) / 10000;
+    }
+
+    // Day bucketing works on local epoch days (days since 1970-01-01 in the default time zone) so grouping and
+    // labelling times needs no Calendar objects. Zone offsets are cached over spans that contain no transition.
+    private static final long ONE_DAY = 24 * 3600 * 1000;
+
+    // How far around a time to look for offset transitions when caching a span, and how many spans to keep
+    private static final long SEGMENT_REACH = 7 * ONE_DAY;
+    private static final int MAX_SEGMENTS = 8;
+
+    // How often to check whether the default time zone has been changed
+    private static final long ZONE_CHECK_INTERVAL = 60 * 1000;
+
+    private static final int FIRST_DAY_OF_WEEK = Calendar.getInstance().getFirstDayOfWeek();
+
+    // Indexed by Calendar.SUNDAY..SATURDAY and month - 1
+    private static final String[] WEEKDAYS = DateFormatSymbols.getInstance().getWeekdays();
+    private static final String[] SHORT_WEEKDAYS = DateFormatSymbols.getInstance().getShortWeekdays();
+    private static final String[] SHORT_MONTHS = DateFormatSymbols.getInstance().getShortMonths();
+
+    private static final int LABEL_CACHE_SIZE = 256;
+
+    // A span of time [start, end) with a constant zone offset
+    private static class OffsetSegment {
+        final long start;
+        final long end;
+        final int offset;
+
+        OffsetSegment(long start, long end, int offset) {
+            this.start = start;
+            this.end = end;
+            this.offset = offset;
+        }
+    }
+
+    // The zone the cached offsets belong to, and the cached offsets, most recently added first
+    private static class ZoneState {
+        final TimeZone zone;
+        final OffsetSegment[] segments;
+
+        ZoneState(TimeZone zone, OffsetSegment[] segments) {
+            this.zone = zone;
+            this.segments = segments;
+        }
+    }
+
+    // The current local day, its bounds, and the labels rendered relative to it
+    private static class Today {
+        final long day;
+        final long start;
+        final long end;
+        final LruCache<Long, String> labels = new LruCache<Long, String>(LABEL_CACHE_SIZE);
+
+        Today(long day, long start, long end) {
+            this.day = day;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // Readers use these without locking; they're only replaced under the class lock
+    private static volatile ZoneState sZoneState = new ZoneState(TimeZone.getDefault(), new OffsetSegment[0]);
+    private static volatile long sZoneCheckTime = 0;
+    private static volatile Today sToday = null;
+
+    // Local epoch day containing the given time. The open ends of a range map to themselves.
+    public static long toEpochDay(long ms) {
+        if(ms == Long.MIN_VALUE || ms == Long.MAX_VALUE) return ms;
+        return floorDiv(ms + getOffset(ms), ONE_DAY);
+    }
+
+    // Time at which a local epoch day starts
+    public static long getStartOfDayMs(long day) {
+        long local = day * ONE_DAY;
+        long ms = local - getOffset(local);
+        ms = local - getOffset(ms);
+
+        // Midnight was skipped by a transition, so the day starts at the transition instead
+        if(toEpochDay(ms) < day) ms = getSegment(ms).end;
+        return ms;
+    }
+
+    // Day of the week as Calendar.SUNDAY..SATURDAY. 1970-01-01 was a Thursday.
+    public static int getDayOfWeek(long day) {
+        return (int)floorMod(day + 4, 7) + 1;
+    }
+
+    // Epoch day the week containing a day starts on, per the locale's first day of the week
+    public static long getStartOfWeek(long day) {
+        return day - floorMod(getDayOfWeek(day) - FIRST_DAY_OF_WEEK, 7);
+    }
+
+    // Proleptic Gregorian date of an epoch day packed as yyyymmdd
+    public static int getCivilDate(long day) {
+        long z = day + 719468;
+        long era = floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long d = doy - (153 * mp + 2) / 5 + 1;
+        long m = mp < 10 ? mp + 3 : mp - 9;
+        long y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+        return (int)(y * 10000 + m * 100 + d);
+    }
+
+    // Epoch day of a proleptic Gregorian date (month 1-12)
+    public static long fromCivilDate(int year, int month, int dayOfMonth) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + dayOfMonth - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    // Epoch day the month containing a day starts on
+    public static long getStartOfMonth(long day) {
+        int date = getCivilDate(day);
+        return fromCivilDate(date / 10000, date / 100 % 100, 1);
+    }
+
+    public static long getTodayEpochDay() {
+        return getToday().day;
+    }
+
+    private static Today getToday() {
+        long now = getTimeMs();
+        checkZone(now);
+
+        Today today = sToday;
+        if(today != null && now >= today.start && now < today.end) return today;
+
+        synchronized(Util.class) {
+            long day = toEpochDay(now);
+            today = new Today(day, getStartOfDayMs(day), getStartOfDayMs(day + 1));
+            sToday = today;
+            return today;
+        }
+    }
+
+    // Look at the default time zone on the next call rather than at the next periodic check
+    public static void onTimeZoneChanged() {
+        sZoneCheckTime = 0;
+    }
+
+    // Drop everything computed for the old zone if the default time zone has changed
+    private static void checkZone(long now) {
+        if(now < sZoneCheckTime) return;
+
+        synchronized(Util.class) {
+            TimeZone zone = TimeZone.getDefault();
+            if(!zone.hasSameRules(sZoneState.zone)) {
+                sZoneState = new ZoneState(zone, new OffsetSegment[0]);
+                sToday = null;
+            }
+            sZoneCheckTime = now + ZONE_CHECK_INTERVAL;
+        }
+    }
+
+    private static int getOffset(long ms) {
+        return getSegment(ms).offset;
+    }
+
+    private static OffsetSegment getSegment(long ms) {
+        checkZone(getTimeMs());
+
+        for(OffsetSegment s : sZoneState.segments) {
+            if(ms >= s.start && ms < s.end) return s;
+        }
+
+        synchronized(Util.class) {
+            ZoneState state = sZoneState;
+            OffsetSegment s = findSegment(state.zone, ms);
+
+            OffsetSegment[] segments = new OffsetSegment[Math.min(state.segments.length + 1, MAX_SEGMENTS)];
+            segments[0] = s;
+            System.arraycopy(state.segments, 0, segments, 1, segments.length - 1);
+            sZoneState = new ZoneState(state.zone, segments);
+            return s;
+        }
+    }
+
+    // Find the span around a time with the same offset, assuming at most one transition on either side within reach
+    private static OffsetSegment findSegment(TimeZone zone, long ms) {
+        int offset = zone.getOffset(ms);
+
+        long start = ms - SEGMENT_REACH;
+        if(zone.getOffset(start) != offset) {
+            // Narrow down to the first time with this offset
+            long lo = start, hi = ms;
+            while(hi - lo > 1) {
+                long mid = lo + (hi - lo) / 2;
+                if(zone.getOffset(mid) == offset) hi = mid; else lo = mid;
+            }
+            start = hi;
+        }
+
+        long end = ms + SEGMENT_REACH;
+        if(zone.getOffset(end) != offset) {
+            // Narrow down to the first time after with a different offset
+            long lo = ms, hi = end;
+            while(hi - lo > 1) {
+                long mid = lo + (hi - lo) / 2;
+                if(zone.getOffset(mid) == offset) lo = mid; else hi = mid;
+            }
+            end = hi;
+        }
+
+        return new OffsetSegment(start, end, offset);
+    }
+
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    private static long floorMod(long a, long b) {
+        return a - floorDiv(a, b) * b;
     }
 
     // Disable and hide a menu item
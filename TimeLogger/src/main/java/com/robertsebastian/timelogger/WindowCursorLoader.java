@@ -0,0 +1,127 @@
+package com.robertsebastian.timelogger;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+
+// A cursor loader for a window of days. Instead of reloading on every change to the provider like a plain
+// CursorLoader, it watches the list URI and skips changes the provider reports outside its window (see
+// TimeProvider.withDays()). Changes arriving in a burst are merged into one reload.
+public class WindowCursorLoader extends CursorLoader {
+    // Least time between the end of one load and the start of the next
+    private static final long UPDATE_THROTTLE = 250;
+
+    private final Uri mObservedUri;
+    private final long mFirstDay, mLastDay;
+
+    private ContentObserver mObserver = null;
+
+    // Signal for the query in progress, cancelled if the load is (guarded by this)
+    private CancellationSignal mCancellationSignal = null;
+
+    // Reload on changes to observedUri or its descendants touching local epoch days firstDay to lastDay, either of
+    // which may be open (Long.MIN_VALUE/MAX_VALUE)
+    public WindowCursorLoader(Context context, Uri uri, String[] projection, String selection, String sortOrder,
+                              Uri observedUri, long firstDay, long lastDay) {
+        super(context, uri, projection, selection, null, sortOrder);
+        mObservedUri = observedUri;
+        mFirstDay = firstDay;
+        mLastDay = lastDay;
+
+        setUpdateThrottle(UPDATE_THROTTLE);
+    }
+
+    // Epoch day of a millisecond time that may be open
+    static long toDay(long ms) {
+        return ms == Long.MIN_VALUE || ms == Long.MAX_VALUE ? ms : Util.toEpochDay(ms);
+    }
+
+    // The cursor isn't watched for changes itself, the window observer takes care of that. From Jelly Bean on, a
+    // load that's been superseded, like a search a keystroke behind, stops inside SQLite.
+    @Override
+    public Cursor loadInBackground() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) return queryCancellable();
+
+        Cursor c = getContext().getContentResolver().query(getUri(), getProjection(), getSelection(),
+                getSelectionArgs(), getSortOrder());
+        if(c != null) c.getCount();  // Fill the window off the UI thread
+        return c;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private Cursor queryCancellable() {
+        synchronized(this) {
+            if(isLoadInBackgroundCanceled()) throw new OperationCanceledException();
+            mCancellationSignal = new CancellationSignal();
+        }
+
+        try {
+            Cursor c = getContext().getContentResolver().query(getUri(), getProjection(), getSelection(),
+                    getSelectionArgs(), getSortOrder(), mCancellationSignal);
+            if(c != null) {
+                try {
+                    c.getCount();
+                } catch(RuntimeException e) {
+                    c.close();
+                    throw e;
+                }
+            }
+            return c;
+        } finally {
+            synchronized(this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+
+        synchronized(this) {
+            if(mCancellationSignal != null) mCancellationSignal.cancel();
+        }
+    }
+
+    // Whether the load has been cancelled, so any work left can be skipped
+    protected boolean isCanceled() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && isLoadInBackgroundCanceled();
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if(mObserver == null) {
+            mObserver = new ContentObserver(new Handler()) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    onContentChanged();
+                }
+
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    if(TimeProvider.touchesDays(uri, mFirstDay, mLastDay)) onContentChanged();
+                }
+            };
+            getContext().getContentResolver().registerContentObserver(mObservedUri, true, mObserver);
+        }
+        super.onStartLoading();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        if(mObserver != null) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserver = null;
+        }
+    }
+}